@@ -0,0 +1,59 @@
+package au.org.massive.oauth2_hpc.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import au.org.massive.oauth2_hpc.ssh.SSHPublicKeyCodec;
+
+/**
+ * Generates the keys used by the benchmarks
+ */
+final class BenchmarkKeys {
+	private static final Provider BOUNCY_CASTLE_PROVIDER = new BouncyCastleProvider();
+
+	private BenchmarkKeys() {
+
+	}
+
+	/**
+	 * @param keyType rsa-&lt;bits&gt;, ecdsa-&lt;256|384|521&gt; or ed25519
+	 * @return a new key pair
+	 */
+	static KeyPair generate(String keyType) throws GeneralSecurityException {
+		String[] parts = keyType.split("-");
+		KeyPairGenerator generator;
+		if (parts[0].equals("rsa")) {
+			generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(Integer.parseInt(parts[1]));
+		} else if (parts[0].equals("ecdsa")) {
+			generator = KeyPairGenerator.getInstance("EC");
+			generator.initialize(new ECGenParameterSpec("secp"+parts[1]+"r1"));
+		} else if (parts[0].equals("ed25519")) {
+			try {
+				generator = KeyPairGenerator.getInstance("Ed25519");
+			} catch (NoSuchAlgorithmException e) {
+				// Java 8-14
+				generator = KeyPairGenerator.getInstance("Ed25519", BOUNCY_CASTLE_PROVIDER);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown key type: "+keyType);
+		}
+		return generator.generateKeyPair();
+	}
+
+	/**
+	 * @param key a public key
+	 * @return the key in ssh-keygen format, as sent to the signing endpoints
+	 */
+	static String toSSHFormat(PublicKey key) throws InvalidKeyException {
+		return SSHPublicKeyCodec.getKeyType(key).getName()+" "+new String(SSHPublicKeyCodec.encodeKeyToSSHBase64Format(key))+" user@example.com";
+	}
+}
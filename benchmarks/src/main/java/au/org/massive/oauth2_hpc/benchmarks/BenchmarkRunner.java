@@ -0,0 +1,33 @@
+package au.org.massive.oauth2_hpc.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count, reporting throughput, latency percentiles and,
+ * through the GC profiler, the allocation rate. Results for each thread count are also written
+ * to results-&lt;threads&gt;-threads.json.
+ * <pre>java -cp target/benchmarks.jar -Dthreads=1,4,16 au.org.massive.oauth2_hpc.benchmarks.BenchmarkRunner [regex]</pre>
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = (args.length > 0) ? args[0] : ".*";
+		for (String threads : System.getProperty("threads", "1,4").split(",")) {
+			int threadCount = Integer.parseInt(threads.trim());
+			new Runner(new OptionsBuilder()
+					.include(include)
+					.threads(threadCount)
+					.mode(Mode.Throughput)
+					.mode(Mode.SampleTime)
+					.addProfiler(GCProfiler.class)
+					.result("results-"+threadCount+"-threads.json")
+					.resultFormat(ResultFormatType.JSON)
+					.build()).run();
+		}
+	}
+}
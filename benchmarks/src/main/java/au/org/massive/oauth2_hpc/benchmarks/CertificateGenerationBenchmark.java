@@ -0,0 +1,83 @@
+package au.org.massive.oauth2_hpc.benchmarks;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.org.massive.oauth2_hpc.ssh.CAKeyHolder;
+import au.org.massive.oauth2_hpc.ssh.CASigner;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator.SSHCertType;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator.SSHCriticalOptions;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateOptions;
+
+/**
+ * {@link SSHCertificateGenerator#generateSSHCertificate}, through a {@link CASigner} as the server
+ * signs keys, and with a key pair as the one-shot API does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CertificateGenerationBenchmark {
+	@Param({ "rsa-2048", "rsa-4096", "ed25519", "ecdsa-256" })
+	public String caKeyType;
+
+	@Param({ "rsa-2048", "ed25519" })
+	public String userKeyType;
+
+	@Param({ "1", "32" })
+	public int principals;
+
+	@Param({ "false", "true" })
+	public boolean forceCommand;
+
+	private KeyPair caKeyPair;
+	private CASigner signer;
+	private SSHCertificateOptions options;
+
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		caKeyPair = BenchmarkKeys.generate(caKeyType);
+		signer = new CASigner(new CAKeyHolder(caKeyPair, null));
+
+		SSHCertificateOptions.Builder builder = SSHCertificateOptions.builder()
+				.setDefaultOptions()
+				.setKeyId("benchmark-cert_user")
+				.setPubKey(BenchmarkKeys.generate(userKeyType).getPublic())
+				.setValidDaysFromNow(1)
+				.setType(SSHCertType.SSH_CERT_TYPE_USER);
+		for (int i = 0; i < principals; i++) {
+			builder.addPrincipal("user"+i);
+		}
+		if (forceCommand) {
+			builder.addCriticalOption(SSHCriticalOptions.FORCE_COMMAND, "/usr/bin/rsync --server --sender -vlogDtpre.iLsfxC . /scratch/project");
+		}
+		options = builder.build();
+	}
+
+	@Benchmark
+	public String signer() throws GeneralSecurityException, IOException {
+		return SSHCertificateGenerator.generateSSHCertificate(options, signer);
+	}
+
+	@Benchmark
+	public String keyPair() throws GeneralSecurityException, IOException {
+		return SSHCertificateGenerator.generateSSHCertificate(options, caKeyPair.getPublic(), caKeyPair.getPrivate());
+	}
+}
@@ -0,0 +1,80 @@
+package au.org.massive.oauth2_hpc.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.google.gson.Gson;
+
+import au.org.massive.oauth2_hpc.JsonRequest;
+
+/**
+ * {@link JsonRequest#processJsonRequest} for /api/v1/sign_key requests (keys = 0) and
+ * /api/v1/sign_keys requests. Each invocation builds a mock request, since the request body
+ * can only be read once; the mock costs far less than parsing the body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonRequestBenchmark {
+	@Param({ "rsa-4096", "ed25519" })
+	public String keyType;
+
+	@Param({ "0", "10", "100" })
+	public int keys;
+
+	private byte[] body;
+
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		Object request;
+		if (keys == 0) {
+			request = keyRequest();
+		} else {
+			List<Map<String,Object>> keyRequests = new ArrayList<Map<String,Object>>();
+			for (int i = 0; i < keys; i++) {
+				keyRequests.add(keyRequest());
+			}
+			Map<String,Object> batch = new HashMap<String,Object>();
+			batch.put("keys", keyRequests);
+			request = batch;
+		}
+		body = new Gson().toJson(request).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private Map<String,Object> keyRequest() throws GeneralSecurityException {
+		Map<String,Object> keyRequest = new HashMap<String,Object>();
+		keyRequest.put("public_key", BenchmarkKeys.toSSHFormat(BenchmarkKeys.generate(keyType).getPublic()));
+		keyRequest.put("valid_for", 1);
+		return keyRequest;
+	}
+
+	@Benchmark
+	public Map<String,Object> processJsonRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/sign_key");
+		request.setContentType("application/json");
+		request.setCharacterEncoding("UTF-8");
+		request.setContent(body);
+		return JsonRequest.processJsonRequest(request);
+	}
+}
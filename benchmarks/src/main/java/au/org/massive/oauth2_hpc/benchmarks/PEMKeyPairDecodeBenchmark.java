@@ -0,0 +1,71 @@
+package au.org.massive.oauth2_hpc.benchmarks;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JcePEMEncryptorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.org.massive.oauth2_hpc.ssh.KeyCodec;
+
+/**
+ * {@link KeyCodec#decodePEMKeyPair(byte[], String, boolean)} for plain and passphrase-protected
+ * RSA keys, as used for the CA and token signing keys
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PEMKeyPairDecodeBenchmark {
+	private static final String PASSPHRASE = "benchmark";
+
+	@Param({ "2048", "4096" })
+	public int keySize;
+
+	@Param({ "false", "true" })
+	public boolean encrypted;
+
+	private byte[] data;
+	private String passphrase;
+
+	@Setup
+	public void setup() throws GeneralSecurityException, IOException {
+		KeyPair keyPair = BenchmarkKeys.generate("rsa-"+keySize);
+		if (encrypted) {
+			StringWriter out = new StringWriter();
+			JcaPEMWriter pemWriter = new JcaPEMWriter(out);
+			pemWriter.writeObject(keyPair, new JcePEMEncryptorBuilder("AES-128-CBC")
+					.setProvider(new BouncyCastleProvider())
+					.build(PASSPHRASE.toCharArray()));
+			pemWriter.close();
+			data = out.toString().getBytes(StandardCharsets.US_ASCII);
+			passphrase = PASSPHRASE;
+		} else {
+			data = KeyCodec.encodePEMKeyPair(keyPair).getBytes(StandardCharsets.US_ASCII);
+			passphrase = null;
+		}
+	}
+
+	@Benchmark
+	public KeyPair decodePEMKeyPair() {
+		return KeyCodec.decodePEMKeyPair(data, passphrase, false);
+	}
+}
@@ -0,0 +1,48 @@
+package au.org.massive.oauth2_hpc.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.org.massive.oauth2_hpc.ssh.SSHPublicKeyCodec;
+
+/**
+ * Decoding public keys given in ssh-keygen format, as received by the signing endpoints
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublicKeyDecodeBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class AnyKeyState {
+		@Param({ "rsa-2048", "rsa-4096", "ed25519", "ecdsa-256", "ecdsa-521" })
+		public String keyType;
+
+		private String key;
+
+		@Setup
+		public void setup() throws GeneralSecurityException {
+			key = BenchmarkKeys.toSSHFormat(BenchmarkKeys.generate(keyType).getPublic());
+		}
+	}
+
+	@Benchmark
+	public PublicKey sshPublicKeyCodec(AnyKeyState state) throws GeneralSecurityException {
+		return SSHPublicKeyCodec.decodeKeyFromSSHBase64Format(state.key);
+	}
+}
@@ -0,0 +1,369 @@
+package au.org.massive.oauth2_hpc.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+
+import com.google.gson.Gson;
+
+import au.org.massive.oauth2_hpc.ApplicationEntrypoint;
+import au.org.massive.oauth2_hpc.OAuthResourceServer;
+import au.org.massive.oauth2_hpc.OAuthScopes;
+import au.org.massive.oauth2_hpc.Settings;
+import au.org.massive.oauth2_hpc.ssh.KeyCodec;
+
+/**
+ * End-to-end load test of /api/v1/sign_key. Unlike the JMH suites, requests go through Tomcat,
+ * the Spring Security filter chain and JWT verification in the resource server.
+ * <p>
+ * The harness needs no outside services: it generates a test CA in a temporary directory,
+ * starts the server on a free localhost port, mints access tokens with the server's own
+ * {@link JwtAccessTokenConverter}, and then sends requests from a fixed number of threads for
+ * a warmup period and a measured period. The report gives latency percentiles, throughput and
+ * the responses by status code; 429 responses mean the signing queue was full.
+ * <pre>java -cp target/benchmarks.jar -Dconcurrency=32 -Dduration=60 au.org.massive.oauth2_hpc.benchmarks.SignKeyLoadTest</pre>
+ * Options, as system properties:
+ * <ul>
+ *   <li>concurrency: number of client threads, each with one request outstanding (default 16)</li>
+ *   <li>duration: measured period in seconds (default 30)</li>
+ *   <li>warmup: warmup period in seconds (default 10)</li>
+ *   <li>caKeyType: rsa-&lt;bits&gt; or ecdsa-&lt;256|384|521&gt; (default rsa-4096)</li>
+ *   <li>userKeyType: key type of the keys being signed, as for caKeyType or ed25519 (default ed25519)</li>
+ *   <li>users: number of distinct users to mint tokens for (default 16)</li>
+ *   <li>keys: number of distinct public keys to sign (default 64)</li>
+ * </ul>
+ * Other server settings, such as signing-threads or signing-queue-size, can also be given as
+ * system properties. The server only reads system properties when there is no
+ * ssh_authz_server.properties file, so run the harness from a directory without one.
+ */
+public class SignKeyLoadTest {
+
+	private static final String CLIENT_ID = "load-test";
+
+	private static final String SIGN_KEY_PATH = "/api/v1/sign_key";
+
+	private static final long TOKEN_VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * Status recorded for requests that fail without a response
+	 */
+	private static final int CONNECTION_ERROR = 0;
+
+	public static void main(String[] args) throws Exception {
+		int concurrency = Integer.getInteger("concurrency", 16);
+		int duration = Integer.getInteger("duration", 30);
+		int warmup = Integer.getInteger("warmup", 10);
+		String caKeyType = System.getProperty("caKeyType", "rsa-4096");
+		String userKeyType = System.getProperty("userKeyType", "ed25519");
+		int users = Integer.getInteger("users", 16);
+		int keys = Integer.getInteger("keys", 64);
+
+		File workDir = Files.createTempDirectory("ssh-authz-load-test").toFile();
+		ConfigurableApplicationContext context = null;
+		try {
+			int port = configureServer(workDir, caKeyType);
+			// Keep a connection alive per client thread rather than the default of five
+			System.setProperty("http.maxConnections", String.valueOf(concurrency));
+
+			Settings.getInstance().getCASigner();
+			context = SpringApplication.run(ApplicationEntrypoint.class);
+
+			JwtAccessTokenConverter tokenConverter = context.getBean(JwtAccessTokenConverter.class);
+			String[] tokens = new String[users];
+			for (int i = 0; i < users; i++) {
+				tokens[i] = mintToken(tokenConverter, "load-test-user-"+i);
+			}
+			String[] requestBodies = new String[keys];
+			Gson gson = new Gson();
+			for (int i = 0; i < keys; i++) {
+				Map<String,Object> request = new HashMap<String,Object>();
+				request.put("public_key", BenchmarkKeys.toSSHFormat(BenchmarkKeys.generate(userKeyType).getPublic()));
+				request.put("valid_for", 1);
+				requestBodies[i] = gson.toJson(request);
+			}
+
+			URL url = new URL("http", "localhost", port, SIGN_KEY_PATH);
+			System.out.println("Load testing "+url+" with "+concurrency+" threads; CA key "+caKeyType+", user keys "+userKeyType);
+			System.out.println("Warming up for "+warmup+"s");
+			run(url, tokens, requestBodies, concurrency, TimeUnit.SECONDS.toNanos(warmup));
+			System.out.println("Measuring for "+duration+"s");
+			Result result = run(url, tokens, requestBodies, concurrency, TimeUnit.SECONDS.toNanos(duration));
+			result.print();
+		} finally {
+			if (context != null) {
+				context.close();
+			}
+			deleteRecursively(workDir);
+		}
+	}
+
+	/**
+	 * Writes a test CA and client registration, and points the server at them through system properties
+	 * @return the port the server will listen on
+	 */
+	private static int configureServer(File workDir, String caKeyType) throws Exception {
+		KeyPair caKeyPair = BenchmarkKeys.generate(caKeyType);
+		File caPublicKey = new File(workDir, "ca.pub");
+		File caPrivateKey = new File(workDir, "ca");
+		Files.write(caPublicKey.toPath(), BenchmarkKeys.toSSHFormat(caKeyPair.getPublic()).getBytes(StandardCharsets.US_ASCII));
+		Files.write(caPrivateKey.toPath(), KeyCodec.encodePEMKeyPair(caKeyPair).getBytes(StandardCharsets.US_ASCII));
+
+		// Tokens are minted directly, so the client is never used, but the authorisation server needs one
+		File clients = new File(workDir, "clients.xml");
+		Files.write(clients.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<registered-clients>\n"
+				+ "  <client>\n"
+				+ "    <name>Load test</name>\n"
+				+ "    <client-id>"+CLIENT_ID+"</client-id>\n"
+				+ "    <client-secret>"+UUID.randomUUID()+"</client-secret>\n"
+				+ "    <allowed-grant-types><grant>authorization_code</grant></allowed-grant-types>\n"
+				+ "    <allowed-redirects><url>https://localhost/callback</url></allowed-redirects>\n"
+				+ "  </client>\n"
+				+ "</registered-clients>\n").getBytes(StandardCharsets.UTF_8));
+
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		setDefault("ssh-ca-public-key", caPublicKey.getAbsolutePath());
+		setDefault("ssh-ca-private-key", caPrivateKey.getAbsolutePath());
+		setDefault("ssh-ca-reload-on-change", "false");
+		setDefault("registered-clients-file", clients.getAbsolutePath());
+		setDefault("cache-file", new File(workDir, "cache.db").getAbsolutePath());
+		setDefault("tomcat-protocol", "HTTP/1.1");
+		setDefault("tomcat-bind-address", "localhost");
+		setDefault("tomcat-port", String.valueOf(port));
+		return Integer.parseInt(System.getProperty("tomcat-port"));
+	}
+
+	private static void setDefault(String key, String value) {
+		if (System.getProperty(key) == null) {
+			System.setProperty(key, value);
+		}
+	}
+
+	/**
+	 * Mints an access token as the authorisation server would issue it after a user approves the client
+	 */
+	private static String mintToken(JwtAccessTokenConverter tokenConverter, String user) {
+		Set<String> scope = Collections.singleton(OAuthScopes.HPC_ACCOUNT_ACCESS.name());
+		OAuth2Request request = new OAuth2Request(Collections.<String,String>emptyMap(), CLIENT_ID,
+				AuthorityUtils.createAuthorityList("ROLE_CLIENT"), true, scope,
+				Collections.singleton(OAuthResourceServer.RESOURCE_ID), null, null, null);
+		Authentication userAuthentication = new UsernamePasswordAuthenticationToken(user, "N/A",
+				Collections.<GrantedAuthority>emptyList());
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(UUID.randomUUID().toString());
+		token.setScope(scope);
+		token.setExpiration(new Date(System.currentTimeMillis() + TOKEN_VALIDITY_MILLIS));
+		return tokenConverter.enhance(token, new OAuth2Authentication(request, userAuthentication)).getValue();
+	}
+
+	private static Result run(URL url, String[] tokens, String[] requestBodies, int concurrency, long durationNanos) throws InterruptedException {
+		Client[] clients = new Client[concurrency];
+		CountDownLatch start = new CountDownLatch(1);
+		long startTime = System.nanoTime();
+		long endTime = startTime + durationNanos;
+		for (int i = 0; i < concurrency; i++) {
+			clients[i] = new Client(i, url, tokens, requestBodies, start, endTime);
+			clients[i].start();
+		}
+		start.countDown();
+		for (Client client : clients) {
+			client.join();
+		}
+		return new Result(clients, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Sends requests one after another until the end of the run, recording the latency and status of each
+	 */
+	private static class Client extends Thread {
+		private final URL url;
+		private final String[] tokens;
+		private final String[] requestBodies;
+		private final CountDownLatch start;
+		private final long endTime;
+		private final int offset;
+		private final byte[] buffer = new byte[8192];
+		private final AtomicLongArray statusCounts = new AtomicLongArray(600);
+		private long[] latencies = new long[1024];
+		private int count;
+
+		Client(int index, URL url, String[] tokens, String[] requestBodies, CountDownLatch start, long endTime) {
+			super("load-test-client-"+index);
+			this.url = url;
+			this.tokens = tokens;
+			this.requestBodies = requestBodies;
+			this.start = start;
+			this.endTime = endTime;
+			// Start each client at a different user and key
+			this.offset = index;
+		}
+
+		@Override
+		public void run() {
+			try {
+				start.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			long requestNumber = offset;
+			long now = System.nanoTime();
+			while (now < endTime) {
+				String token = tokens[(int) (requestNumber % tokens.length)];
+				String body = requestBodies[(int) (requestNumber % requestBodies.length)];
+				int status = send(token, body);
+				long end = System.nanoTime();
+				record(end - now);
+				statusCounts.incrementAndGet(status);
+				requestNumber++;
+				now = end;
+			}
+		}
+
+		private void record(long latency) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = latency;
+		}
+
+		private int send(String token, String body) {
+			HttpURLConnection connection = null;
+			try {
+				connection = (HttpURLConnection) url.openConnection();
+				connection.setRequestMethod("POST");
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Authorization", "Bearer "+token);
+				connection.setRequestProperty("Content-Type", "application/json");
+				byte[] data = body.getBytes(StandardCharsets.UTF_8);
+				connection.setFixedLengthStreamingMode(data.length);
+				try (OutputStream out = connection.getOutputStream()) {
+					out.write(data);
+				}
+				int status = connection.getResponseCode();
+				// Read the whole response so that the connection can be reused
+				InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+				if (in != null) {
+					try {
+						while (in.read(buffer) != -1) {
+							// Discard
+						}
+					} finally {
+						in.close();
+					}
+				}
+				return (status > 0 && status < statusCounts.length()) ? status : CONNECTION_ERROR;
+			} catch (IOException e) {
+				if (connection != null) {
+					connection.disconnect();
+				}
+				return CONNECTION_ERROR;
+			}
+		}
+	}
+
+	/**
+	 * Latencies and status counts merged from all clients
+	 */
+	private static class Result {
+		private final long[] latencies;
+		private final Map<Integer,Long> statusCounts = new TreeMap<Integer,Long>();
+		private final long elapsedNanos;
+
+		Result(Client[] clients, long elapsedNanos) {
+			this.elapsedNanos = elapsedNanos;
+			int total = 0;
+			for (Client client : clients) {
+				total += client.count;
+			}
+			latencies = new long[total];
+			int position = 0;
+			for (Client client : clients) {
+				System.arraycopy(client.latencies, 0, latencies, position, client.count);
+				position += client.count;
+				for (int status = 0; status < client.statusCounts.length(); status++) {
+					long count = client.statusCounts.get(status);
+					if (count > 0) {
+						Long sum = statusCounts.get(status);
+						statusCounts.put(status, (sum == null) ? count : sum + count);
+					}
+				}
+			}
+			Arrays.sort(latencies);
+		}
+
+		private double percentileMillis(double percentile) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+		}
+
+		void print() {
+			long requests = latencies.length;
+			double seconds = elapsedNanos / 1e9;
+			List<String> lines = new ArrayList<String>();
+			lines.add(String.format(Locale.ROOT, "Requests:    %d in %.1fs", requests, seconds));
+			lines.add(String.format(Locale.ROOT, "Throughput:  %.1f requests/s", requests / seconds));
+			lines.add(String.format(Locale.ROOT, "Latency (ms): p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+					percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9), percentileMillis(100)));
+			long errors = 0;
+			for (Map.Entry<Integer,Long> entry : statusCounts.entrySet()) {
+				int status = entry.getKey();
+				String label = (status == CONNECTION_ERROR) ? "connection errors" : "HTTP "+status;
+				lines.add(String.format(Locale.ROOT, "  %-18s %d (%.2f%%)", label, entry.getValue(), 100.0 * entry.getValue() / Math.max(1, requests)));
+				if (status != 200) {
+					errors += entry.getValue();
+				}
+			}
+			lines.add(String.format(Locale.ROOT, "Error rate:  %.2f%%", 100.0 * errors / Math.max(1, requests)));
+			for (String line : lines) {
+				System.out.println(line);
+			}
+		}
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,42 @@
+package au.org.massive.oauth2_hpc.events.jfr;
+
+import au.org.massive.oauth2_hpc.events.EventSink;
+import au.org.massive.oauth2_hpc.events.NoOpEventSink;
+
+/**
+ * Records events with JDK Flight Recorder. Only built by the <pre>jfr</pre> profile, on JDK 11
+ * or later. While an event type is not being recorded, its events are not created at all.
+ */
+public class FlightRecorderEventSink implements EventSink {
+	private static final NoOpEventSink disabled = new NoOpEventSink();
+
+	@Override
+	public SigningEvent beginSigning() {
+		JfrSigningEvent event = new JfrSigningEvent();
+		if (!event.isEnabled()) {
+			return disabled;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public LdapSearchEvent beginLdapSearch() {
+		JfrLdapSearchEvent event = new JfrLdapSearchEvent();
+		if (!event.isEnabled()) {
+			return disabled;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public CacheCommitEvent beginCacheCommit() {
+		JfrCacheCommitEvent event = new JfrCacheCommitEvent();
+		if (!event.isEnabled()) {
+			return disabled;
+		}
+		event.begin();
+		return event;
+	}
+}
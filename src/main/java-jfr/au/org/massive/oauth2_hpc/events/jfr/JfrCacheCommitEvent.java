@@ -0,0 +1,14 @@
+package au.org.massive.oauth2_hpc.events.jfr;
+
+import au.org.massive.oauth2_hpc.events.EventSink;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.org.massive.ssh_authz.CacheCommit")
+@Label("Disk Cache Commit")
+@Description("A commit of the user details disk cache")
+@Category("SSH-AuthZ")
+class JfrCacheCommitEvent extends jdk.jfr.Event implements EventSink.CacheCommitEvent {
+}
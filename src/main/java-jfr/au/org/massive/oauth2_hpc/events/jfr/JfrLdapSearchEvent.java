@@ -0,0 +1,31 @@
+package au.org.massive.oauth2_hpc.events.jfr;
+
+import au.org.massive.oauth2_hpc.events.EventSink;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.org.massive.ssh_authz.LdapSearch")
+@Label("LDAP Search")
+@Description("An LDAP user search, including waiting for a connection")
+@Category("SSH-AuthZ")
+class JfrLdapSearchEvent extends jdk.jfr.Event implements EventSink.LdapSearchEvent {
+
+	@Label("Filter")
+	String filter;
+
+	@Label("Result Count")
+	@Description("Number of results read, or -1 if the search failed")
+	int resultCount;
+
+	@Override
+	public void commit(String filter, int resultCount) {
+		end();
+		if (shouldCommit()) {
+			this.filter = filter;
+			this.resultCount = resultCount;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package au.org.massive.oauth2_hpc.events.jfr;
+
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+
+import au.org.massive.oauth2_hpc.events.EventSink;
+import au.org.massive.oauth2_hpc.ssh.SSHPublicKeyCodec;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.org.massive.ssh_authz.Signing")
+@Label("Certificate Signing")
+@Description("Signing of an SSH certificate")
+@Category("SSH-AuthZ")
+class JfrSigningEvent extends jdk.jfr.Event implements EventSink.SigningEvent {
+
+	@Label("User")
+	String user;
+
+	@Label("Key Type")
+	String keyType;
+
+	@Label("Certificate Size")
+	@DataAmount
+	int bytes;
+
+	@Override
+	public void commit(String user, PublicKey key, String certificate) {
+		end();
+		if (shouldCommit()) {
+			this.user = user;
+			try {
+				keyType = SSHPublicKeyCodec.getKeyType(key).getName();
+			} catch (InvalidKeyException e) {
+				keyType = key.getAlgorithm();
+			}
+			bytes = certificate.length();
+			commit();
+		}
+	}
+}
@@ -27,6 +27,10 @@ public class ApplicationEntrypoint {
 	 * @param args command line arguments
 	 */
 	public static void main(String[] args) {
+		// Decode the SSH CA keys and choose a signature provider up front, so that any passphrase
+		// prompt happens before the server starts
+		settings.getCASigner();
+		settings.getSigningExecutor();
 		SpringApplication.run(ApplicationEntrypoint.class, args);
 	}
 	
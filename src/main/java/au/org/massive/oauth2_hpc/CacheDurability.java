@@ -0,0 +1,24 @@
+package au.org.massive.oauth2_hpc;
+
+
+/**
+ * When writes to the disk cache are committed to the cache file
+ */
+public enum CacheDurability {
+    /**
+     * After every write, on the writing thread
+     */
+    SYNC,
+    /**
+     * In batches from a background thread, once enough writes are pending or the commit interval has passed
+     */
+    BATCHED,
+    /**
+     * Only when the server shuts down; the cache is lost if the server is killed
+     */
+    SHUTDOWN;
+
+    public static CacheDurability getDurability(String name) {
+        return CacheDurability.valueOf(name.toUpperCase());
+    }
+}
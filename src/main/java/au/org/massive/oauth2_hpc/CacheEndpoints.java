@@ -0,0 +1,49 @@
+package au.org.massive.oauth2_hpc;
+
+import org.apache.log4j.Logger;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Controller class for administering the user details cache
+ */
+@RestController
+public class CacheEndpoints {
+
+	private static final Logger log = Logger.getLogger(CacheEndpoints.class.getName());
+
+	private static final Settings settings = Settings.getInstance();
+
+	/**
+	 * Cache endpoint protected by OAuth2, for users listed in admin-users.
+	 * Removes a user from the cache, e.g. after their LDAP entry changed, or all users if no user
+	 * is given. Either way, users remembered as unknown are forgotten, so that users who have just
+	 * been added to LDAP can sign in straight away.
+	 *
+	 * @param user the lookup key of the user to remove, e.g. email; optional
+	 * @return no content
+	 */
+	@RequestMapping(value="/api/v1/cache/users",
+			method=RequestMethod.DELETE)
+	public ResponseEntity<Void> clearUsers(@RequestParam(value="user", required=false) String user) {
+		String remoteHPCUser = (String)SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+		if (!settings.isAdminUser(remoteHPCUser)) {
+			log.info("Refused to clear the user cache for "+remoteHPCUser+" because the user is not an administrator.");
+			return new ResponseEntity<Void>(HttpStatus.FORBIDDEN);
+		}
+		UserDetailsCache cache = UserDetailsCache.getInstance();
+		if (user == null || user.isEmpty()) {
+			cache.clear();
+			log.info(remoteHPCUser+" cleared the user cache");
+		} else {
+			cache.removeUserDetails(user);
+			log.info(remoteHPCUser+" removed "+user+" from the user cache");
+		}
+		return new ResponseEntity<Void>(HttpStatus.NO_CONTENT);
+	}
+}
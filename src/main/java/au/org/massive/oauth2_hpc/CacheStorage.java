@@ -0,0 +1,24 @@
+package au.org.massive.oauth2_hpc;
+
+
+/**
+ * How the disk cache is stored
+ */
+public enum CacheStorage {
+    /**
+     * In the cache file, accessed with file reads and writes
+     */
+    FILE,
+    /**
+     * In the cache file, memory-mapped so that reads avoid system calls
+     */
+    MMAP,
+    /**
+     * In direct memory outside the Java heap; the cache is lost when the server stops
+     */
+    MEMORY;
+
+    public static CacheStorage getStorage(String name) {
+        return CacheStorage.valueOf(name.toUpperCase());
+    }
+}
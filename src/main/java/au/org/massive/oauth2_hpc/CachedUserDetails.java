@@ -0,0 +1,31 @@
+package au.org.massive.oauth2_hpc;
+
+import org.springframework.security.core.userdetails.UserDetails;
+
+/**
+ * A cached user, with the time it was loaded from LDAP
+ */
+public class CachedUserDetails {
+    private final UserDetails userDetails;
+    private final long loadedAt;
+
+    /**
+     * @param userDetails the user
+     * @param loadedAt when the user was loaded from LDAP, in milliseconds since the epoch
+     */
+    public CachedUserDetails(UserDetails userDetails, long loadedAt) {
+        this.userDetails = userDetails;
+        this.loadedAt = loadedAt;
+    }
+
+    public UserDetails getUserDetails() {
+        return userDetails;
+    }
+
+    /**
+     * @return when the user was loaded from LDAP, in milliseconds since the epoch; 0 if unknown
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+}
@@ -0,0 +1,101 @@
+package au.org.massive.oauth2_hpc;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import au.org.massive.oauth2_hpc.metrics.Gauge;
+import au.org.massive.oauth2_hpc.metrics.Metrics;
+
+/**
+ * Stops calls to a failing service so that callers fail fast instead of each waiting for it to
+ * time out. The breaker opens after a number of consecutive failures. While it is open,
+ * {@link #allowRequest()} refuses calls; once the open period has passed, a single trial call is
+ * allowed, which closes the breaker if it succeeds and opens it again if it fails.
+ * <p>
+ * The state is exported as <pre>ssh_authz_circuit_breaker_state{breaker="name",state="..."}</pre>,
+ * which is 1 for the current state and 0 for the others.
+ */
+public class CircuitBreaker {
+	private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final Map<State, Gauge> stateGauges = new EnumMap<State, Gauge>(State.class);
+
+	private State state;
+	private int consecutiveFailures;
+	private long openedAt;
+
+	/**
+	 * @param name the name of the service, e.g. ldap
+	 * @param failureThreshold consecutive failures that open the breaker
+	 * @param openSeconds how long the breaker stays open before a trial call is allowed
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openSeconds) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+		for (State s : State.values()) {
+			stateGauges.put(s, Metrics.getInstance().gauge("ssh_authz_circuit_breaker_state",
+					"Circuit breaker state; 1 for the current state", "breaker", name, "state", s.name().toLowerCase()));
+		}
+		setState(State.CLOSED);
+	}
+
+	/**
+	 * @return true if the call may go ahead; the caller must then report the outcome with
+	 * {@link #recordSuccess()} or {@link #recordFailure()}
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (System.nanoTime() - openedAt >= openNanos) {
+					log.info("Trying "+name+" again after the circuit breaker was open");
+					setState(State.HALF_OPEN);
+					return true;
+				}
+				return false;
+			default:
+				// A trial call is in progress
+				return false;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		if (state != State.CLOSED) {
+			log.info("Closed the "+name+" circuit breaker");
+			setState(State.CLOSED);
+		}
+	}
+
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			log.warn("Opened the "+name+" circuit breaker after "+consecutiveFailures+" consecutive failures");
+			openedAt = System.nanoTime();
+			setState(State.OPEN);
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	private void setState(State newState) {
+		state = newState;
+		for (Map.Entry<State, Gauge> entry : stateGauges.entrySet()) {
+			entry.getValue().set(entry.getKey() == newState ? 1 : 0);
+		}
+	}
+}
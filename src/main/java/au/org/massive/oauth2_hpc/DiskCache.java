@@ -1,24 +1,60 @@
 package au.org.massive.oauth2_hpc;
 
+import au.org.massive.oauth2_hpc.events.EventSink;
+import au.org.massive.oauth2_hpc.events.Events;
 import org.apache.log4j.Logger;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Abstracts a file-based cache of key/values
+ * Abstracts a file-based cache of key/values.
+ * Subclasses call {@link #scheduleCommit()} after writing. Depending on the configured
+ * {@link CacheDurability}, the write is committed straight away, or later in a batch from a
+ * background thread so that commits stay off request threads. Pending writes are committed
+ * when the server shuts down.
+ * <p>
+ * The store is kept in the cache file, optionally memory-mapped, or in direct memory (see
+ * {@link CacheStorage}). Caches can be bounded by store size and number of entries, evicting
+ * the least recently used entries, and the store is compacted periodically to reclaim the
+ * space left by expired entries.
  */
 public abstract class DiskCache {
     private static final Logger log = Logger.getLogger(DiskCache.class.getName());
     private static final Settings settings = Settings.getInstance();
     private static DB db;
+    private static CacheDurability durability;
+    private static int commitBatchSize;
+    private static ScheduledExecutorService maintenance;
+    private static final AtomicInteger pendingWrites = new AtomicInteger();
+
+    private static final Runnable commitPendingWrites = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                commitPending();
+            } catch (RuntimeException e) {
+                log.error("Could not commit the disk cache", e);
+            }
+        }
+    };
 
     public DiskCache() {
+        open();
+    }
+
+    private static synchronized void open() {
         if (db == null) {
             File f = null;
             try {
@@ -43,17 +79,96 @@ public abstract class DiskCache {
                 }
             }
 
-            if (f == null) {
+            // Closed by the shutdown hook below, after pending writes are committed
+            CacheStorage storage = settings.getCacheStorage();
+            if (storage == CacheStorage.MEMORY) {
+                db = DBMaker.memoryDirectDB()
+                        .make();
+                log.info("Using in-memory cache, stored outside the Java heap.");
+            } else if (f == null) {
                 db = DBMaker.memoryDB()
-                        .closeOnJvmShutdown()
                         .make();
                 log.info("Using in-memory cache.");
+            } else if (storage == CacheStorage.MMAP) {
+                db = DBMaker.fileDB(f)
+                        .fileMmapEnableIfSupported()
+                        .fileMmapCleanerHackEnable()
+                        .make();
+                log.info("Using memory-mapped file-based cache: " + f.getAbsolutePath());
             } else {
                 db = DBMaker.fileDB(f)
-                        .closeOnJvmShutdown()
                         .make();
                 log.info("Using file-based cache: " + f.getAbsolutePath());
             }
+
+            durability = settings.getCacheDurability();
+            commitBatchSize = settings.getCacheCommitBatchSize();
+            long compactInterval = settings.getCacheCompactIntervalHours();
+            if (durability == CacheDurability.BATCHED || compactInterval > 0) {
+                maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "disk-cache-maintenance");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            if (durability == CacheDurability.BATCHED) {
+                long interval = settings.getCacheCommitIntervalMillis();
+                maintenance.scheduleWithFixedDelay(commitPendingWrites, interval, interval, TimeUnit.MILLISECONDS);
+            }
+            if (compactInterval > 0) {
+                maintenance.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        compact();
+                    }
+                }, compactInterval, compactInterval, TimeUnit.HOURS);
+            }
+            log.info("Cache writes are committed: " + durability.name());
+
+            Runtime.getRuntime().addShutdownHook(new Thread("disk-cache-shutdown") {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Commits pending writes, then compacts the store to reclaim the space left by expired and
+     * evicted entries
+     */
+    private static void compact() {
+        try {
+            long start = System.nanoTime();
+            commitPending();
+            db.compact();
+            log.info("Compacted the disk cache in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        } catch (RuntimeException e) {
+            log.error("Could not compact the disk cache", e);
+        }
+    }
+
+    /**
+     * Stops the background commits, commits any pending writes and closes the cache
+     */
+    private static synchronized void close() {
+        if (maintenance != null) {
+            maintenance.shutdown();
+            try {
+                maintenance.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            commitPending();
+            log.info("Flushed the disk cache");
+        } finally {
+            db.close();
         }
     }
 
@@ -75,18 +190,99 @@ public abstract class DiskCache {
     }
 
     protected <K,V> Map<K,V> getCache(String name, Expiry expiry) {
+        return getCache(name, expiry, null, null);
+    }
+
+    /**
+     * Gets or creates a cache whose keys and values are stored with the given serializers
+     * rather than with Java serialization
+     * @param name the cache name
+     * @param expiry how long entries are kept after they were last accessed, or null to keep them
+     * @param keySerializer serializer for keys, or null for Java serialization
+     * @param valueSerializer serializer for values, or null for Java serialization
+     * @return the cache
+     */
+    protected <K,V> Map<K,V> getCache(String name, Expiry expiry,
+                                      Serializer<K> keySerializer, Serializer<V> valueSerializer) {
         DB.HTreeMapMaker mapMaker = db.hashMapCreate(name);
+        if (keySerializer != null) {
+            mapMaker.keySerializer(keySerializer);
+        }
+        if (valueSerializer != null) {
+            mapMaker.valueSerializer(valueSerializer);
+        }
         if (expiry != null) {
             mapMaker.expireAfterAccess(expiry.getDuration(), expiry.getUnit());
         }
+        if (settings.getCacheMaxSizeMB() > 0) {
+            mapMaker.expireStoreSize(settings.getCacheMaxSizeMB() / 1024.0);
+        }
+        if (settings.getCacheMaxEntries() > 0) {
+            mapMaker.expireMaxSize(settings.getCacheMaxEntries());
+        }
         return mapMaker.makeOrGet();
     }
 
-    public void commit() {
+    /**
+     * Deletes a cache that is no longer used, e.g. after its storage format changed
+     * @param name the cache name
+     */
+    protected void dropCache(String name) {
+        synchronized (DiskCache.class) {
+            if (db.exists(name)) {
+                db.delete(name);
+                commit();
+                log.info("Deleted unused cache: " + name);
+            }
+        }
+    }
+
+    /**
+     * Commits a write according to the configured durability: straight away, once enough
+     * writes are pending or the commit interval has passed, or at shutdown
+     */
+    protected void scheduleCommit() {
+        switch (durability) {
+            case SYNC:
+                commit();
+                break;
+            case BATCHED:
+                if (pendingWrites.incrementAndGet() == commitBatchSize) {
+                    try {
+                        maintenance.execute(commitPendingWrites);
+                    } catch (RejectedExecutionException e) {
+                        // Shutting down; the write stays pending, and close() commits it
+                        log.debug("Cache maintenance has stopped; leaving the write pending");
+                    }
+                }
+                break;
+            default:
+                pendingWrites.incrementAndGet();
+        }
+    }
+
+    private static void commitPending() {
+        if (pendingWrites.getAndSet(0) > 0) {
+            commitNow();
+        }
+    }
+
+    private static void commitNow() {
+        EventSink.CacheCommitEvent event = Events.sink().beginCacheCommit();
         db.commit();
+        event.commit();
+    }
+
+    /**
+     * Commits all writes straight away, whatever the durability
+     */
+    public void commit() {
+        pendingWrites.set(0);
+        commitNow();
     }
 
     public void rollback() {
+        pendingWrites.set(0);
         db.rollback();
     }
 }
@@ -0,0 +1,308 @@
+package au.org.massive.oauth2_hpc;
+
+import au.org.massive.oauth2_hpc.events.EventSink;
+import au.org.massive.oauth2_hpc.events.Events;
+import au.org.massive.oauth2_hpc.metrics.SigningStages;
+import au.org.massive.oauth2_hpc.ssh.CASigner;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator.SSHCertType;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateOptions;
+import au.org.massive.oauth2_hpc.ssh.SSHPublicKeyCodec;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import org.apache.log4j.Logger;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller class for bulk host certificate signing, e.g. when a cluster is rebuilt
+ */
+@RestController
+public class HostCertificateEndpoints {
+
+	private static final Logger log = Logger.getLogger(HostCertificateEndpoints.class.getName());
+
+	private static final Settings settings = Settings.getInstance();
+
+	public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+	/**
+	 * Longest accepted request line; a host key record is well under this
+	 */
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	/**
+	 * Records being signed at once per request, per signing thread. Bounds the memory used by a
+	 * request however large the upload is.
+	 */
+	private static final int IN_FLIGHT_PER_THREAD = 4;
+
+	/**
+	 * How long to wait before retrying when the signing queue is full and none of the request's records are being signed
+	 */
+	private static final long QUEUE_FULL_WAIT_MILLIS = 50;
+
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+	private static final String QUEUE_FULL_ERROR = "Too many signing requests; try again later";
+
+	/**
+	 * Host key signing endpoint protected by OAuth2, for users listed in admin-users.
+	 * The request body is newline-delimited json, one host key per line:
+	 * { "public_key": "...", "principals": ["node1.example.com", "10.0.0.1"], "valid_for": 365, "key_id": "node1" }
+	 * valid_for and key_id are optional; the key id defaults to the first principal. Each record is signed in
+	 * parallel and written back as a line of newline-delimited json as soon as it completes, so responses may be
+	 * out of order; the "line" field gives the line number of the record:
+	 * { "line": 1, "certificate": "..." } or { "line": 2, "error": "Malformed public key" }
+	 * Unlike the user endpoints, this endpoint waits for room in the signing queue rather than rejecting the request.
+	 * If none of the request's records are being signed and the queue stays full for signing-retry-after-seconds,
+	 * the record fails with { "line": 3, "error": "Too many signing requests; try again later" }.
+	 */
+	@RequestMapping(value="/api/v1/sign_host_keys",
+			method=RequestMethod.POST,
+			produces=NDJSON_MEDIA_TYPE)
+	public void signHostKeys(HttpServletRequest request, HttpServletResponse response) throws Exception {
+		String remoteHPCUser = (String)SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+		if (!settings.isAdminUser(remoteHPCUser)) {
+			log.info("Refused to sign host certificates for "+remoteHPCUser+" because the user is not an administrator.");
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setContentType(NDJSON_MEDIA_TYPE);
+		Reader reader = request.getReader();
+		Writer writer = response.getWriter();
+
+		SigningExecutor executor = settings.getSigningExecutor();
+		CompletionService<HostKeySigningTask> completionService = new ExecutorCompletionService<HostKeySigningTask>(executor);
+		int maxInFlight = executor.getMaximumPoolSize() * IN_FLIGHT_PER_THREAD;
+		int inFlight = 0;
+		long lineNumber = 0;
+		long signed = 0;
+		StringBuilder line = new StringBuilder();
+		try {
+			while (readLine(reader, line)) {
+				lineNumber++;
+				if (line.length() > MAX_LINE_LENGTH) {
+					writer.write(toJson(lineNumber, "error", "Line too long"));
+					continue;
+				} else if (line.toString().trim().isEmpty()) {
+					continue;
+				}
+				while (inFlight >= maxInFlight) {
+					signed += writeResult(completionService.take(), writer);
+					inFlight--;
+				}
+				HostKeySigningTask task = new HostKeySigningTask(remoteHPCUser, lineNumber, line.toString());
+				long giveUpAt = 0;
+				boolean submitted;
+				while (!(submitted = submit(completionService, task))) {
+					// The signing queue is full; wait for one of our records, or for a while for other requests to drain the queue
+					if (inFlight > 0) {
+						signed += writeResult(completionService.take(), writer);
+						inFlight--;
+						giveUpAt = 0;
+					} else if (giveUpAt == 0) {
+						giveUpAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.getSigningRetryAfterSeconds());
+						Thread.sleep(QUEUE_FULL_WAIT_MILLIS);
+					} else if (System.nanoTime() - giveUpAt < 0) {
+						Thread.sleep(QUEUE_FULL_WAIT_MILLIS);
+					} else {
+						break;
+					}
+				}
+				if (submitted) {
+					inFlight++;
+				} else {
+					log.info("Could not sign line "+lineNumber+" for "+remoteHPCUser+" because the signing queue is full.");
+					writer.write(toJson(lineNumber, "error", QUEUE_FULL_ERROR));
+				}
+
+				Future<HostKeySigningTask> result;
+				boolean wrote = false;
+				while ((result = completionService.poll()) != null) {
+					signed += writeResult(result, writer);
+					inFlight--;
+					wrote = true;
+				}
+				if (wrote) {
+					writer.flush();
+				}
+			}
+			// Finish the records already submitted
+			while (inFlight > 0) {
+				signed += writeResult(completionService.take(), writer);
+				inFlight--;
+			}
+			writer.flush();
+		} catch (IOException e) {
+			// The upload or the response failed; records still being signed are discarded
+			log.warn("Stopped signing host certificates for "+remoteHPCUser+" at line "+lineNumber+" after signing "+signed
+					+" because the connection failed: "+e.getMessage());
+			throw e;
+		}
+		log.info("Signed "+signed+" host certificates from "+lineNumber+" lines for "+remoteHPCUser+".");
+	}
+
+	private static boolean submit(CompletionService<HostKeySigningTask> completionService, HostKeySigningTask task) {
+		try {
+			completionService.submit(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a line into a reused buffer. Characters past {@link #MAX_LINE_LENGTH} are discarded.
+	 * @return false at the end of the input
+	 */
+	private static boolean readLine(Reader reader, StringBuilder line) throws IOException {
+		line.setLength(0);
+		int c = reader.read();
+		if (c == -1) {
+			return false;
+		}
+		while (c != -1 && c != '\n') {
+			if (line.length() <= MAX_LINE_LENGTH) {
+				line.append((char) c);
+			}
+			c = reader.read();
+		}
+		return true;
+	}
+
+	/**
+	 * @return 1 if the result is a certificate, otherwise 0
+	 */
+	private static int writeResult(Future<HostKeySigningTask> result, Writer writer) throws IOException, InterruptedException {
+		try {
+			HostKeySigningTask task = result.get();
+			writer.write(task.response);
+			return task.signed ? 1 : 0;
+		} catch (ExecutionException e) {
+			// Tasks report their own errors, so this is unexpected
+			log.error("Error signing a host key", e.getCause());
+			return 0;
+		}
+	}
+
+	private static String toJson(long lineNumber, String key, String value) {
+		Map<String,Object> responseMessage = new LinkedHashMap<String,Object>();
+		responseMessage.put("line", lineNumber);
+		responseMessage.put(key, value);
+		return gson.toJson(responseMessage)+"\n";
+	}
+
+	/**
+	 * Signs one host key record and formats the response line
+	 */
+	private static class HostKeySigningTask implements Callable<HostKeySigningTask> {
+		private final String user;
+		private final long lineNumber;
+		private final String record;
+		private String response;
+		private boolean signed;
+
+		HostKeySigningTask(String user, long lineNumber, String record) {
+			this.user = user;
+			this.lineNumber = lineNumber;
+			this.record = record;
+		}
+
+		@Override
+		public HostKeySigningTask call() {
+			try {
+				response = toJson(lineNumber, "certificate", signHostKey(user, record));
+				signed = true;
+			} catch (InvalidKeyException | SignatureException e) {
+				response = toJson(lineNumber, "error", "Malformed public key");
+			} catch (ExceededMaximumCertificateValidityException e) {
+				response = toJson(lineNumber, "error", "Server configured to sign host certificates with a maximum duration of "+settings.getMaxSSHHostCertValidity()+" days");
+			} catch (JsonSyntaxException | ClassCastException e) {
+				response = toJson(lineNumber, "error", "Malformed request");
+			} catch (Exception e) {
+				// A catch-all to avoid exposing the exact cause of the error to the client
+				log.error("Error signing a host key", e);
+				response = toJson(lineNumber, "error", "Error processing signing request");
+			}
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static String signHostKey(String user, String record) throws InvalidKeyException, SignatureException, ExceededMaximumCertificateValidityException, IOException {
+			Map<String,Object> data = gson.fromJson(record, HashMap.class);
+			if (data == null) {
+				throw new JsonSyntaxException("expected object");
+			}
+			String pubKeyString = (String)data.get("public_key");
+			if (pubKeyString == null || pubKeyString.isEmpty()) {
+				throw new InvalidKeyException();
+			}
+			List<Object> principals = (List<Object>)data.get("principals");
+			if (principals == null || principals.isEmpty()) {
+				throw new JsonSyntaxException("expected array for \"principals\" field");
+			}
+			SSHCertificateOptions.Builder certOptsBuilder = SSHCertificateOptions.builder();
+			for (Object principal : principals) {
+				certOptsBuilder.addPrincipal((String) principal);
+			}
+
+			int requestedValidity = settings.getMaxSSHHostCertValidity();
+			Object valid_for = data.get("valid_for");
+			if (valid_for != null) {
+				try {
+					requestedValidity = (valid_for instanceof String)?Integer.valueOf((String)valid_for):(int)Math.round((Double)valid_for);
+				} catch (NumberFormatException e) {
+					throw new JsonSyntaxException(e);
+				}
+				if (requestedValidity <= 0) {
+					throw new JsonSyntaxException("expected integer for \"valid_for\" field");
+				} else if (requestedValidity > settings.getMaxSSHHostCertValidity()) {
+					throw new ExceededMaximumCertificateValidityException();
+				}
+			}
+
+			long start = System.nanoTime();
+			PublicKey publicKey = SSHPublicKeyCodec.decodeKeyFromSSHBase64Format(pubKeyString);
+			SigningStages.KEY_DECODE.observeSince(start);
+
+			String keyId = (String)data.get("key_id");
+			SSHCertificateOptions certOpts = certOptsBuilder
+					.setKeyId(keyId != null ? keyId : (String) principals.get(0))
+					.setPubKey(publicKey)
+					.setValidDaysFromNow(requestedValidity)
+					.setType(SSHCertType.SSH_CERT_TYPE_HOST)
+					.build();
+
+			CASigner signer = settings.getCASigner();
+			EventSink.SigningEvent event = Events.sink().beginSigning();
+			String certificate = SSHCertificateGenerator.generateSSHCertificate(certOpts, signer);
+			event.commit(user, publicKey, certificate);
+			return certificate;
+		}
+	}
+}
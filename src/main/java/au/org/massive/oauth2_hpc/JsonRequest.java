@@ -12,6 +12,8 @@ import org.apache.log4j.Logger;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
+import au.org.massive.oauth2_hpc.metrics.SigningStages;
+
 /**
  * Utility class to process simple key/value json data in the request body. Does not support depth greater than 1
  * @author jrigby
@@ -47,6 +49,7 @@ public class JsonRequest {
 	 */
 	@SuppressWarnings("unchecked")
 	public static Map<String,Object> processJsonRequest(HttpServletRequest request) throws JsonSyntaxException {
+		long start = System.nanoTime();
 		Gson gson = new Gson();
 		try {
 			String requestBody = getRequestBody(request);
@@ -54,6 +57,8 @@ public class JsonRequest {
 			return gson.fromJson(requestBody, HashMap.class);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			SigningStages.REQUEST_PARSE.observeSince(start);
 		}
 	}
 }
@@ -1,28 +1,41 @@
 package au.org.massive.oauth2_hpc;
 
-import au.org.massive.oauth2_hpc.ssh.RSAPublicKeyCodec;
+import au.org.massive.oauth2_hpc.events.EventSink;
+import au.org.massive.oauth2_hpc.events.Events;
+import au.org.massive.oauth2_hpc.metrics.SigningStages;
+import au.org.massive.oauth2_hpc.ssh.CASigner;
 import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator;
 import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator.SSHCertType;
 import au.org.massive.oauth2_hpc.ssh.SSHCertificateOptions;
+import au.org.massive.oauth2_hpc.ssh.SSHPublicKeyCodec;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 import org.apache.log4j.Logger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.security.InvalidKeyException;
+import java.security.PublicKey;
 import java.security.SignatureException;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Controller class for the key signing endpoint
@@ -36,6 +49,8 @@ public class KeyAuthEndpoints {
 
 	private static final Settings settings = Settings.getInstance();
 
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
 	public boolean isUserBlackListed(String user) {
 		for (String u : settings.getUserBlacklist()) {
 			if (u.toLowerCase().equals(user.toLowerCase())) {
@@ -49,94 +64,315 @@ public class KeyAuthEndpoints {
 	 * Key signing endpoint protected by OAuth2.
 	 * Accepts a public key and optional valid period and returns a signed certificate.
 	 * Json request example for a 10 day certificate: { "public_key": "...", "valid_for": "10" }
-	 * The public key is RSA, formatted as with ssh-keygen in base64 (i.e. ~/.ssh/id_rsa.pub)
+	 * The public key is RSA, Ed25519 or ECDSA, formatted as with ssh-keygen in base64 (i.e. ~/.ssh/id_rsa.pub)
+	 * The key is signed on the signing executor rather than the request thread; if the signing queue is
+	 * full the request is rejected with 429 Too Many Requests and a Retry-After header.
 	 *
 	 * @return the certificate
 	 */
 	@RequestMapping(value="/api/v1/sign_key",
 			method={RequestMethod.GET,RequestMethod.POST},
 			produces=MediaType.APPLICATION_JSON_VALUE)
-	public String authorizeKey(HttpServletRequest request, HttpServletResponse response) throws Exception {
+	public DeferredResult<ResponseEntity<String>> authorizeKey(HttpServletRequest request) throws Exception {
+		final DeferredResult<ResponseEntity<String>> result = new DeferredResult<ResponseEntity<String>>();
 		try {
-			Map<String,String> responseMessage = new HashMap<String,String>();
-			String remoteHPCUser = (String)SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+			final String remoteHPCUser = (String)SecurityContextHolder.getContext().getAuthentication().getPrincipal();
 			try {
 				if (isUserBlackListed(remoteHPCUser)) {
 					throw new UserBlacklistedException();
 				}
 
-				Map<String,Object> data = JsonRequest.processJsonRequest(request);
-				String pubKeyString = (String)data.get("public_key");
+				final Map<String,Object> data = JsonRequest.processJsonRequest(request);
+				if (data == null) {
+					// An empty body or a json null; other non-objects fail to parse
+					throw new JsonSyntaxException("expected object");
+				}
 				try {
-					if (pubKeyString == null || pubKeyString.isEmpty()) {
-						throw new InvalidKeyException();
-					}
-
-					RSAPublicKey publicKey = RSAPublicKeyCodec.decodeKeyFromSSHBase64Format(pubKeyString);
-					RSAPublicKey caPublicKey = settings.getCAPublicKey();
-					RSAPrivateKey caPrivateKey = settings.getCAPrivateKey();
-
-					int requestedValidity = settings.getMaxSSHCertValidity();
-					try {
-						if (data.get("valid_for") != null) {
-							Object valid_for = data.get("valid_for");
-							requestedValidity = (valid_for instanceof String)?Integer.valueOf((String)valid_for):(int)Math.round((Double)valid_for);
-							if (requestedValidity <= 0) {
-								throw new JsonSyntaxException("expected integer for \"valid_for\" field");
-							} else if (requestedValidity > settings.getMaxSSHCertValidity()) {
-								throw new ExceededMaximumCertificateValidityException();
+					settings.getSigningExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								result.setResult(signKeyResponse(remoteHPCUser, data));
+							} catch (Exception e) {
+								// A catch-all to avoid exposing the exact cause of the error to the client
+								log.error("Error signing a key", e);
+								result.setErrorResult(new Exception("Error processing signing request"));
 							}
 						}
-					} catch (NumberFormatException e) {
-						throw new JsonSyntaxException(e);
-					}
-
-					SSHCertificateOptions.Builder certOptsBuilder = SSHCertificateOptions.builder()
-							.setDefaultOptions()
-							.addPrincipal(remoteHPCUser)
-							.setKeyId(InetAddress.getLocalHost().getHostName()+"-cert_"+remoteHPCUser)
-							.setPubKey(publicKey)
-							.setValidDaysFromNow(requestedValidity)
-							.setType(SSHCertType.SSH_CERT_TYPE_USER);
-
-					String forceCommand = (String) data.get("force_command");
-					if (forceCommand != null) {
-						certOptsBuilder.addCriticalOption(SSHCertificateGenerator.SSHCriticalOptions.FORCE_COMMAND, forceCommand);
-					}
-
-					SSHCertificateOptions certOpts = certOptsBuilder.build();
-
-					String signedCertificate = SSHCertificateGenerator.generateSSHCertificate(certOpts, caPublicKey, caPrivateKey);
-					log.info("Signed a certificate for "+remoteHPCUser+" valid for "+requestedValidity+" days.");
-					responseMessage.put("user", remoteHPCUser);
-					responseMessage.put("certificate", signedCertificate);
-
-				} catch (InvalidKeyException | SignatureException e) {
-					log.info("Rejected a signing request for "+remoteHPCUser+" because an invalid public key was provided.");
-					responseMessage.put("error", "Malformed public key");
-					response.sendError(HttpServletResponse.SC_BAD_REQUEST);
-				} catch (ExceededMaximumCertificateValidityException e) {
-					log.info("Rejected a signing request for "+remoteHPCUser+" because the validity period exceeded limits.");
-					responseMessage.put("error", "Server configured to sign certificates with a maximum duration of "+settings.getMaxSSHCertValidity()+" days");
-					response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					});
+				} catch (RejectedExecutionException e) {
+					log.info("Rejected a signing request for "+remoteHPCUser+" because the signing queue is full.");
+					result.setResult(tooManyRequests());
 				}
 			} catch (UserBlacklistedException e) {
 				log.info("Refused to sign certificate for "+remoteHPCUser+" because the user is blacklisted.");
-				responseMessage.put("error", "User blacklisted");
-				response.sendError(HttpServletResponse.SC_FORBIDDEN);
+				result.setResult(errorResponse("User blacklisted", HttpStatus.FORBIDDEN));
 			} catch (JsonSyntaxException e) {
 				log.info("Couldn't understand signing request made by "+remoteHPCUser);
-				responseMessage.put("error", "Malformed request");
-				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				result.setResult(errorResponse("Malformed request", HttpStatus.BAD_REQUEST));
 			}
+			return result;
+		} catch (Exception e) {
+			// A catch-all to avoid exposing the exact cause of the error to the client
+			log.error("Error signing a key", e);
+			throw new Exception("Error processing signing request");
+		}
+	}
+
+	/**
+	 * Signs a single key and builds the response for /api/v1/sign_key
+	 */
+	private ResponseEntity<String> signKeyResponse(String remoteHPCUser, Map<String,Object> data) throws IOException {
+		try {
+			Map<String,String> responseMessage = new HashMap<String,String>();
+			responseMessage.put("user", remoteHPCUser);
+			responseMessage.put("certificate", signKey(remoteHPCUser, data));
+			return new ResponseEntity<String>(toJson(responseMessage), HttpStatus.OK);
+		} catch (InvalidKeyException | SignatureException e) {
+			log.info("Rejected a signing request for "+remoteHPCUser+" because an invalid public key was provided.");
+			return errorResponse("Malformed public key", HttpStatus.BAD_REQUEST);
+		} catch (ExceededMaximumCertificateValidityException e) {
+			log.info("Rejected a signing request for "+remoteHPCUser+" because the validity period exceeded limits.");
+			return errorResponse(getValidityExceededMessage(), HttpStatus.BAD_REQUEST);
+		} catch (JsonSyntaxException | ClassCastException e) {
+			log.info("Couldn't understand signing request made by "+remoteHPCUser);
+			return errorResponse("Malformed request", HttpStatus.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Batch key signing endpoint protected by OAuth2.
+	 * Accepts a list of keys, each with the same fields as a request to /api/v1/sign_key, and signs
+	 * them in parallel on the signing executor. Results are returned in the order of the keys; a key
+	 * that can't be signed gets an error rather than failing the whole batch. If the signing queue
+	 * can't take the whole batch, the request is rejected with 429 Too Many Requests and a Retry-After header.
+	 * Json request example: { "keys": [ { "public_key": "...", "valid_for": "10" }, { "public_key": "...", "force_command": "..." } ] }
+	 * Json response example: { "user": "...", "results": [ { "certificate": "..." }, { "error": "Malformed public key" } ] }
+	 *
+	 * @return the certificates
+	 */
+	@RequestMapping(value="/api/v1/sign_keys",
+			method=RequestMethod.POST,
+			produces=MediaType.APPLICATION_JSON_VALUE)
+	public DeferredResult<ResponseEntity<String>> authorizeKeys(HttpServletRequest request) throws Exception {
+		final DeferredResult<ResponseEntity<String>> result = new DeferredResult<ResponseEntity<String>>();
+		try {
+			final String remoteHPCUser = (String)SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+			try {
+				if (isUserBlackListed(remoteHPCUser)) {
+					throw new UserBlacklistedException();
+				}
 
-			Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+				Map<String,Object> data = JsonRequest.processJsonRequest(request);
+				Object keys = (data == null) ? null : data.get("keys");
+				if (!(keys instanceof List)) {
+					throw new JsonSyntaxException("expected array for \"keys\" field");
+				}
+				List<?> items = (List<?>) keys;
+				if (items.size() > settings.getMaxSigningBatchSize()) {
+					log.info("Rejected a batch signing request for "+remoteHPCUser+" because it contained "+items.size()+" keys.");
+					result.setResult(errorResponse("Server configured to sign a maximum of "+settings.getMaxSigningBatchSize()+" keys per request", HttpStatus.BAD_REQUEST));
+					return result;
+				}
 
-			return gson.toJson(responseMessage).replace("\\\\", "\\");
+				SigningExecutor executor = settings.getSigningExecutor();
+				if (executor.getQueue().remainingCapacity() < items.size()) {
+					log.info("Rejected a batch signing request for "+remoteHPCUser+" because the signing queue is full.");
+					result.setResult(tooManyRequests());
+					return result;
+				}
+				BatchSigning batch = new BatchSigning(remoteHPCUser, items, result);
+				List<Future<?>> submitted = new ArrayList<Future<?>>(items.size());
+				try {
+					for (int i = 0; i < items.size(); i++) {
+						submitted.add(executor.submit(batch.new ItemSigningTask(i)));
+					}
+				} catch (RejectedExecutionException e) {
+					// Another request filled the queue first; don't sign part of the batch
+					for (Future<?> task : submitted) {
+						task.cancel(false);
+					}
+					log.info("Rejected a batch signing request for "+remoteHPCUser+" because the signing queue is full.");
+					result.setResult(tooManyRequests());
+				}
+			} catch (UserBlacklistedException e) {
+				log.info("Refused to sign certificates for "+remoteHPCUser+" because the user is blacklisted.");
+				result.setResult(errorResponse("User blacklisted", HttpStatus.FORBIDDEN));
+			} catch (JsonSyntaxException e) {
+				log.info("Couldn't understand batch signing request made by "+remoteHPCUser);
+				result.setResult(errorResponse("Malformed request", HttpStatus.BAD_REQUEST));
+			}
+			return result;
 		} catch (Exception e) {
 			// A catch-all to avoid exposing the exact cause of the error to the client
-			e.printStackTrace();
+			log.error("Error signing a key", e);
 			throw new Exception("Error processing signing request");
 		}
 	}
+
+	/**
+	 * The keys of a batch request. Each key is signed by its own task; the last task to finish
+	 * completes the request, so no thread waits for the batch.
+	 */
+	private class BatchSigning {
+		private final String remoteHPCUser;
+		private final List<?> items;
+		private final Map<String,String>[] results;
+		private final AtomicInteger remaining;
+		private final DeferredResult<ResponseEntity<String>> result;
+
+		@SuppressWarnings("unchecked")
+		BatchSigning(String remoteHPCUser, List<?> items, DeferredResult<ResponseEntity<String>> result) {
+			this.remoteHPCUser = remoteHPCUser;
+			this.items = items;
+			this.results = new Map[items.size()];
+			this.remaining = new AtomicInteger(items.size());
+			this.result = result;
+			if (items.isEmpty()) {
+				complete();
+			}
+		}
+
+		private void complete() {
+			int signed = 0;
+			for (Map<String,String> item : results) {
+				if (item.containsKey("certificate")) {
+					signed++;
+				}
+			}
+			log.info("Signed "+signed+" of "+items.size()+" certificates in a batch for "+remoteHPCUser+".");
+			Map<String,Object> responseMessage = new HashMap<String,Object>();
+			responseMessage.put("user", remoteHPCUser);
+			responseMessage.put("results", Arrays.asList(results));
+			result.setResult(new ResponseEntity<String>(toJson(responseMessage), HttpStatus.OK));
+		}
+
+		private class ItemSigningTask implements Runnable {
+			private final int index;
+
+			ItemSigningTask(int index) {
+				this.index = index;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public void run() {
+				Map<String,String> itemResult = new HashMap<String,String>();
+				try {
+					Object item = items.get(index);
+					if (!(item instanceof Map)) {
+						throw new JsonSyntaxException("expected object for each key");
+					}
+					itemResult.put("certificate", signKey(remoteHPCUser, (Map<String,Object>) item));
+				} catch (Exception e) {
+					itemResult.put("error", getSigningErrorMessage(e));
+				}
+				results[index] = itemResult;
+				if (remaining.decrementAndGet() == 0) {
+					complete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Signs a single key for a user
+	 * @param remoteHPCUser the user, who becomes the certificate principal
+	 * @param data the key request: public_key, and optionally valid_for and force_command
+	 * @return the certificate
+	 * @throws InvalidKeyException thrown if the public key is missing or invalid
+	 * @throws SignatureException thrown if a signature could not be generated
+	 * @throws ExceededMaximumCertificateValidityException thrown if valid_for exceeds the configured maximum
+	 * @throws JsonSyntaxException thrown if a field has the wrong type
+	 */
+	private String signKey(String remoteHPCUser, Map<String,Object> data) throws InvalidKeyException, SignatureException, ExceededMaximumCertificateValidityException, IOException {
+		String pubKeyString = (String)data.get("public_key");
+		if (pubKeyString == null || pubKeyString.isEmpty()) {
+			throw new InvalidKeyException();
+		}
+
+		long start = System.nanoTime();
+		PublicKey publicKey = SSHPublicKeyCodec.decodeKeyFromSSHBase64Format(pubKeyString);
+		SigningStages.KEY_DECODE.observeSince(start);
+
+		int requestedValidity = settings.getMaxSSHCertValidity();
+		try {
+			if (data.get("valid_for") != null) {
+				Object valid_for = data.get("valid_for");
+				requestedValidity = (valid_for instanceof String)?Integer.valueOf((String)valid_for):(int)Math.round((Double)valid_for);
+				if (requestedValidity <= 0) {
+					throw new JsonSyntaxException("expected integer for \"valid_for\" field");
+				} else if (requestedValidity > settings.getMaxSSHCertValidity()) {
+					throw new ExceededMaximumCertificateValidityException();
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new JsonSyntaxException(e);
+		}
+
+		SSHCertificateOptions.Builder certOptsBuilder = SSHCertificateOptions.builder()
+				.setDefaultOptions()
+				.addPrincipal(remoteHPCUser)
+				.setKeyId(InetAddress.getLocalHost().getHostName()+"-cert_"+remoteHPCUser)
+				.setPubKey(publicKey)
+				.setValidDaysFromNow(requestedValidity)
+				.setType(SSHCertType.SSH_CERT_TYPE_USER);
+
+		String forceCommand = (String) data.get("force_command");
+		if (forceCommand != null) {
+			certOptsBuilder.addCriticalOption(SSHCertificateGenerator.SSHCriticalOptions.FORCE_COMMAND, forceCommand);
+		}
+
+		SSHCertificateOptions certOpts = certOptsBuilder.build();
+
+		CASigner signer = settings.getCASigner();
+
+		EventSink.SigningEvent event = Events.sink().beginSigning();
+		String signedCertificate = SSHCertificateGenerator.generateSSHCertificate(certOpts, signer);
+		event.commit(remoteHPCUser, publicKey, signedCertificate);
+		log.info("Signed a certificate for "+remoteHPCUser+" valid for "+requestedValidity+" days.");
+		return signedCertificate;
+	}
+
+	private static String getValidityExceededMessage() {
+		return "Server configured to sign certificates with a maximum duration of "+settings.getMaxSSHCertValidity()+" days";
+	}
+
+	/**
+	 * @param e the reason a key in a batch could not be signed
+	 * @return the error reported for the key
+	 */
+	private static String getSigningErrorMessage(Throwable e) {
+		if (e instanceof InvalidKeyException || e instanceof SignatureException) {
+			return "Malformed public key";
+		} else if (e instanceof ExceededMaximumCertificateValidityException) {
+			return getValidityExceededMessage();
+		} else if (e instanceof JsonSyntaxException || e instanceof ClassCastException) {
+			return "Malformed request";
+		} else {
+			log.error("Error signing a key in a batch", e);
+			return "Error processing signing request";
+		}
+	}
+
+	private static ResponseEntity<String> errorResponse(String error, HttpStatus status) {
+		Map<String,String> responseMessage = new HashMap<String,String>();
+		responseMessage.put("error", error);
+		return new ResponseEntity<String>(toJson(responseMessage), status);
+	}
+
+	private static ResponseEntity<String> tooManyRequests() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("Retry-After", String.valueOf(settings.getSigningRetryAfterSeconds()));
+		Map<String,String> responseMessage = new HashMap<String,String>();
+		responseMessage.put("error", "Too many signing requests; try again later");
+		return new ResponseEntity<String>(toJson(responseMessage), headers, HttpStatus.TOO_MANY_REQUESTS);
+	}
+
+	private static String toJson(Object responseMessage) {
+		long start = System.nanoTime();
+		String json = gson.toJson(responseMessage).replace("\\\\", "\\");
+		SigningStages.RESPONSE_SERIALIZATION.observeSince(start);
+		return json;
+	}
 }
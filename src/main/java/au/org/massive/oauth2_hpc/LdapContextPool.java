@@ -0,0 +1,244 @@
+package au.org.massive.oauth2_hpc;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool of bound LDAP contexts, so that user lookups don't connect, negotiate TLS and
+ * bind for every search. Contexts are borrowed with {@link #borrow()} and handed back with
+ * {@link #release(DirContext)}, or with {@link #invalidate(DirContext)} if the connection failed.
+ * <p>
+ * At most <pre>size</pre> contexts exist at once; borrowers wait up to the acquisition timeout
+ * for one to be released. The most recently used idle context is borrowed first, so that
+ * contexts left idle for longer than the idle timeout can be closed by a background thread.
+ * A context that has been idle for a while is checked with a root DSE read before it is
+ * borrowed, and replaced if the server has dropped the connection. {@link #close()} stops the
+ * background thread and closes the pooled contexts.
+ * @see LdapReplicaSet
+ */
+public class LdapContextPool {
+	private static final Logger log = Logger.getLogger(LdapContextPool.class.getName());
+
+	/**
+	 * Idle contexts are checked before use if they have been idle for longer than this
+	 */
+	private static final long VALIDATE_AFTER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+	private static final String CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+	private static final String READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+
+	private final String providerUrl;
+	private final Hashtable<String, String> env;
+	private final Semaphore permits;
+	private final long idleTimeoutNanos;
+	private final long acquireTimeoutMillis;
+	private final LinkedBlockingDeque<IdleContext> idle = new LinkedBlockingDeque<IdleContext>();
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed;
+
+	/**
+	 * A context waiting in the pool
+	 */
+	private static final class IdleContext {
+		private final DirContext context;
+		private final long idleSince;
+
+		private IdleContext(DirContext context) {
+			this.context = context;
+			this.idleSince = System.nanoTime();
+		}
+
+		private long idleNanos(long now) {
+			return now - idleSince;
+		}
+	}
+
+	/**
+	 * @param providerUrl LDAP server URL
+	 * @param securityPrincipal DN to bind as, or null or empty for an anonymous bind
+	 * @param securityPassword password to bind with
+	 * @param size maximum number of contexts
+	 * @param idleTimeoutSeconds idle contexts are closed after this many seconds
+	 * @param acquireTimeoutMillis how long {@link #borrow()} waits for a context when all are in use
+	 * @param connectTimeoutMillis how long to wait to connect to the server
+	 * @param readTimeoutMillis how long to wait for a response from the server
+	 */
+	public LdapContextPool(String providerUrl, String securityPrincipal, String securityPassword,
+			int size, long idleTimeoutSeconds, long acquireTimeoutMillis,
+			long connectTimeoutMillis, long readTimeoutMillis) {
+		this.providerUrl = providerUrl;
+		env = new Hashtable<String, String>();
+		env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+		env.put(Context.PROVIDER_URL, providerUrl);
+		// Without these, a server that stops responding blocks lookups indefinitely
+		env.put(CONNECT_TIMEOUT, Long.toString(connectTimeoutMillis));
+		env.put(READ_TIMEOUT, Long.toString(readTimeoutMillis));
+		// Authenticate if credentials were provided
+		if (securityPrincipal != null && !securityPrincipal.isEmpty()) {
+			env.put(Context.SECURITY_AUTHENTICATION, "simple");
+			env.put(Context.SECURITY_PRINCIPAL, securityPrincipal);
+			env.put(Context.SECURITY_CREDENTIALS, securityPassword);
+		}
+		this.permits = new Semaphore(size, true);
+		this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ldap-pool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long evictionInterval = Math.max(1, idleTimeoutSeconds / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdleContexts();
+			}
+		}, evictionInterval, evictionInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Borrows a bound context, connecting a new one if no idle context is available
+	 * @return the context
+	 * @throws ServiceUnavailableException if no context became available within the acquisition timeout,
+	 * or the pool is closed
+	 * @throws NamingException if a new context could not be connected
+	 */
+	public DirContext borrow() throws NamingException {
+		if (closed) {
+			throw new ServiceUnavailableException("The LDAP connection pool for "+providerUrl+" is closed");
+		}
+		try {
+			if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new ServiceUnavailableException("Timed out waiting for an LDAP connection to "+providerUrl);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Interrupted waiting for an LDAP connection");
+		}
+		try {
+			IdleContext candidate;
+			while ((candidate = idle.pollFirst()) != null) {
+				if (candidate.idleNanos(System.nanoTime()) < VALIDATE_AFTER_IDLE_NANOS || isHealthy(candidate.context)) {
+					return candidate.context;
+				}
+				log.info("Discarding a pooled LDAP connection that failed a health check");
+				close(candidate.context);
+			}
+			return new InitialDirContext(env);
+		} catch (NamingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a healthy context to the pool
+	 * @param context a context from {@link #borrow()}
+	 */
+	public void release(DirContext context) {
+		IdleContext idleContext = new IdleContext(context);
+		idle.offerFirst(idleContext);
+		permits.release();
+		// The pool may have been closed while the context was borrowed
+		if (closed && idle.removeFirstOccurrence(idleContext)) {
+			close(context);
+		}
+	}
+
+	/**
+	 * Closes a context whose connection failed, rather than returning it to the pool
+	 * @param context a context from {@link #borrow()}
+	 */
+	public void invalidate(DirContext context) {
+		close(context);
+		permits.release();
+	}
+
+	/**
+	 * Checks that the server responds by reading the root DSE on a pooled context
+	 * @throws NamingException if the server did not respond
+	 */
+	public void ping() throws NamingException {
+		DirContext context = borrow();
+		try {
+			context.getAttributes("", NO_ATTRIBUTES);
+		} catch (NamingException | RuntimeException e) {
+			invalidate(context);
+			throw e;
+		}
+		release(context);
+	}
+
+	/**
+	 * Stops the idle context evictor and closes the idle contexts. Contexts borrowed at the time
+	 * are closed when they are handed back, and further borrows fail.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		IdleContext candidate;
+		while ((candidate = idle.pollFirst()) != null) {
+			close(candidate.context);
+		}
+	}
+
+	public String getProviderUrl() {
+		return providerUrl;
+	}
+
+	private static boolean isHealthy(DirContext context) {
+		try {
+			context.getAttributes("", NO_ATTRIBUTES);
+			return true;
+		} catch (NamingException e) {
+			return false;
+		}
+	}
+
+	private static void close(DirContext context) {
+		try {
+			context.close();
+		} catch (NamingException e) {
+			log.debug("Error closing LDAP connection", e);
+		}
+	}
+
+	/**
+	 * Closes contexts that have been idle for longer than the idle timeout. The least recently
+	 * used contexts are at the end of the queue.
+	 */
+	private void evictIdleContexts() {
+		long now = System.nanoTime();
+		Iterator<IdleContext> iterator = idle.descendingIterator();
+		while (iterator.hasNext()) {
+			IdleContext candidate = iterator.next();
+			if (candidate.idleNanos(now) < idleTimeoutNanos) {
+				break;
+			}
+			// A borrower may have taken it in the meantime
+			if (idle.removeFirstOccurrence(candidate)) {
+				close(candidate.context);
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package au.org.massive.oauth2_hpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import org.apache.log4j.Logger;
+
+import au.org.massive.oauth2_hpc.metrics.Gauge;
+import au.org.massive.oauth2_hpc.metrics.Metrics;
+
+/**
+ * A set of LDAP replicas holding the same directory, each with its own {@link LdapContextPool}.
+ * Each replica's latency is tracked as an exponentially weighted moving average of its searches
+ * and of periodic health probes, which read the root DSE. Lookups try the healthy replicas,
+ * fastest first, then the unhealthy ones as a last resort, so that a slow or failed replica is
+ * avoided until a probe finds it has recovered.
+ * <p>
+ * The replica set takes its settings as constructor arguments rather than from {@link Settings},
+ * so it can be pointed at any LDAP servers, e.g. embedded in-memory servers.
+ * @see Settings#getLdapReplicaSet()
+ */
+public class LdapReplicaSet {
+	private static final Logger log = Logger.getLogger(LdapReplicaSet.class.getName());
+
+	/**
+	 * Weight of the newest latency sample in the moving average
+	 */
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private final List<Replica> replicas;
+	private final ScheduledExecutorService prober;
+
+	/**
+	 * An LDAP server in the set
+	 */
+	public static final class Replica {
+		private final LdapContextPool pool;
+		private final Gauge healthyGauge;
+		private final Gauge latencyGauge;
+		private volatile boolean healthy = true;
+		private double latencyNanos = Double.NaN;
+
+		private Replica(LdapContextPool pool) {
+			this.pool = pool;
+			this.healthyGauge = Metrics.getInstance().gauge("ssh_authz_ldap_replica_healthy",
+					"1 if the LDAP replica passed its last health check or search", "replica", pool.getProviderUrl());
+			this.latencyGauge = Metrics.getInstance().gauge("ssh_authz_ldap_replica_latency_seconds",
+					"Moving average of the LDAP replica's search and health check times", "replica", pool.getProviderUrl());
+			healthyGauge.set(1);
+		}
+
+		public LdapContextPool getPool() {
+			return pool;
+		}
+
+		public String getUrl() {
+			return pool.getProviderUrl();
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/**
+		 * @return moving average latency in nanoseconds, or 0 if the replica has not been measured yet
+		 */
+		public synchronized double getLatencyNanos() {
+			return Double.isNaN(latencyNanos) ? 0 : latencyNanos;
+		}
+
+		/**
+		 * Records a successful search or health check
+		 * @param nanos how long it took
+		 */
+		public void recordSuccess(long nanos) {
+			double latency;
+			synchronized (this) {
+				latencyNanos = Double.isNaN(latencyNanos) ? nanos : LATENCY_WEIGHT * nanos + (1 - LATENCY_WEIGHT) * latencyNanos;
+				latency = latencyNanos;
+			}
+			latencyGauge.set(latency / 1e9);
+			if (!healthy) {
+				log.info("LDAP replica "+getUrl()+" is healthy again");
+				healthy = true;
+				healthyGauge.set(1);
+			}
+		}
+
+		/**
+		 * Records a failure to reach the replica; it is tried after the healthy replicas until it
+		 * next succeeds
+		 */
+		public void recordFailure() {
+			if (healthy) {
+				log.warn("LDAP replica "+getUrl()+" is unhealthy");
+				healthy = false;
+				healthyGauge.set(0);
+			}
+		}
+	}
+
+	/**
+	 * Orders healthy replicas first, then by latency
+	 */
+	private static final Comparator<Replica> BY_PREFERENCE = new Comparator<Replica>() {
+		@Override
+		public int compare(Replica a, Replica b) {
+			if (a.isHealthy() != b.isHealthy()) {
+				return a.isHealthy() ? -1 : 1;
+			}
+			return Double.compare(a.getLatencyNanos(), b.getLatencyNanos());
+		}
+	};
+
+	/**
+	 * @param pools a connection pool for each replica
+	 * @param probeIntervalSeconds how often each replica is probed; 0 to not probe
+	 */
+	public LdapReplicaSet(List<LdapContextPool> pools, long probeIntervalSeconds) {
+		if (pools.isEmpty()) {
+			throw new IllegalArgumentException("At least one LDAP replica is required");
+		}
+		List<Replica> replicas = new ArrayList<Replica>();
+		for (LdapContextPool pool : pools) {
+			replicas.add(new Replica(pool));
+		}
+		this.replicas = Collections.unmodifiableList(replicas);
+
+		// With a single replica there is nothing to choose between
+		if (probeIntervalSeconds > 0 && replicas.size() > 1) {
+			prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ldap-replica-probe");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			prober.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					probe();
+				}
+			}, 0, probeIntervalSeconds, TimeUnit.SECONDS);
+		} else {
+			prober = null;
+		}
+	}
+
+	/**
+	 * @return the replicas in the order they should be tried
+	 */
+	public List<Replica> getReplicasByPreference() {
+		List<Replica> ordered = new ArrayList<Replica>(replicas);
+		Collections.sort(ordered, BY_PREFERENCE);
+		return ordered;
+	}
+
+	public List<Replica> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * Stops probing the replicas and closes their connection pools
+	 */
+	public void close() {
+		if (prober != null) {
+			prober.shutdownNow();
+		}
+		for (Replica replica : replicas) {
+			replica.getPool().close();
+		}
+	}
+
+	/**
+	 * Checks each replica in turn, updating its health and latency
+	 */
+	void probe() {
+		for (Replica replica : replicas) {
+			long start = System.nanoTime();
+			try {
+				replica.getPool().ping();
+				replica.recordSuccess(System.nanoTime() - start);
+			} catch (NamingException | RuntimeException e) {
+				log.debug("Health check of LDAP replica "+replica.getUrl()+" failed", e);
+				replica.recordFailure();
+			}
+		}
+	}
+}
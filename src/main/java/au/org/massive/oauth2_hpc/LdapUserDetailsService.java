@@ -1,14 +1,35 @@
 package au.org.massive.oauth2_hpc;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.naming.Context;
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.InvalidSearchFilterException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 
@@ -19,6 +40,12 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
+import au.org.massive.oauth2_hpc.events.EventSink;
+import au.org.massive.oauth2_hpc.events.Events;
+import au.org.massive.oauth2_hpc.metrics.Counter;
+import au.org.massive.oauth2_hpc.metrics.Histogram;
+import au.org.massive.oauth2_hpc.metrics.Metrics;
+
 /**
  * Queries an LDAP server for a uid based on a search filter
  * @author jrigby
@@ -29,6 +56,134 @@ public class LdapUserDetailsService implements UserDetailsService {
 	private static final Logger log = Logger.getLogger(LdapUserDetailsService.class.getName());
 	private static final Settings settings = Settings.getInstance();
 
+	private static final String CACHE_REQUESTS_METRIC = "ssh_authz_user_cache_requests_total";
+	private static final String CACHE_REQUESTS_HELP = "User details cache lookups by result";
+	private static final Counter cacheHits = Metrics.getInstance().counter(CACHE_REQUESTS_METRIC, CACHE_REQUESTS_HELP, "result", "hit");
+	private static final Counter cacheMisses = Metrics.getInstance().counter(CACHE_REQUESTS_METRIC, CACHE_REQUESTS_HELP, "result", "miss");
+	private static final Counter cacheUnknownHits = Metrics.getInstance().counter(CACHE_REQUESTS_METRIC, CACHE_REQUESTS_HELP, "result", "unknown_user");
+	private static final Counter staleHits = Metrics.getInstance().counter(CACHE_REQUESTS_METRIC, CACHE_REQUESTS_HELP, "result", "stale");
+	private static final Counter breakerRejections = Metrics.getInstance().counter("ssh_authz_ldap_breaker_rejections_total",
+			"LDAP lookups refused because the LDAP circuit breaker was open");
+	private static final Counter coalescedLookups = Metrics.getInstance().counter("ssh_authz_ldap_lookups_coalesced_total",
+			"User lookups that waited for a lookup of the same user already in progress, rather than querying LDAP");
+	private static final String REFRESHES_METRIC = "ssh_authz_user_cache_refreshes_total";
+	private static final String REFRESHES_HELP = "Background refreshes of cached users ahead of expiry, by result";
+	private static final Counter refreshesSucceeded = Metrics.getInstance().counter(REFRESHES_METRIC, REFRESHES_HELP, "result", "refreshed");
+	private static final Counter refreshesNotFound = Metrics.getInstance().counter(REFRESHES_METRIC, REFRESHES_HELP, "result", "not_found");
+	private static final Counter refreshesFailed = Metrics.getInstance().counter(REFRESHES_METRIC, REFRESHES_HELP, "result", "failed");
+	private static final String HEDGES_METRIC = "ssh_authz_ldap_hedges_total";
+	private static final String HEDGES_HELP = "Searches also sent to a second LDAP replica because the first was slow, by which replica answered first";
+	private static final Counter hedgesWon = Metrics.getInstance().counter(HEDGES_METRIC, HEDGES_HELP, "result", "won");
+	private static final Counter hedgesLost = Metrics.getInstance().counter(HEDGES_METRIC, HEDGES_HELP, "result", "lost");
+	private static final Histogram ldapLookupTime = Metrics.getInstance().histogram("ssh_authz_ldap_lookup_seconds",
+			"Time taken to look up a user in LDAP, including waiting for a connection");
+
+	private static final int MAX_SEARCH_ATTEMPTS = 2;
+
+	private static final int REFRESH_QUEUE_SIZE = 1000;
+
+	/**
+	 * Searches timed before hedging starts, so that the hedge delay reflects normal search times
+	 */
+	static final long HEDGE_MIN_SAMPLES = 100;
+
+	/**
+	 * Most replica searches in progress at once when hedging; further lookups search without hedging
+	 */
+	private static final int MAX_HEDGED_SEARCH_THREADS = 64;
+
+	private final UserDetailsCache userCache = UserDetailsCache.getInstance();
+
+	/**
+	 * Lookups in progress, by user name. Concurrent lookups of the same user wait for the first
+	 * one rather than each querying LDAP.
+	 */
+	private final ConcurrentMap<String, CompletableFuture<UserDetails>> lookupsInFlight =
+			new ConcurrentHashMap<String, CompletableFuture<UserDetails>>();
+
+	private final long cacheExpiryMillis = TimeUnit.HOURS.toMillis(settings.getCacheExpiryHours());
+	private final long refreshAheadMillis = TimeUnit.MINUTES.toMillis(settings.getCacheRefreshAheadMinutes());
+	private final long staleGraceMillis = TimeUnit.HOURS.toMillis(settings.getCacheStaleGraceHours());
+	private final LdapReplicaSet replicaSet;
+
+	/**
+	 * Successful search times on single replicas, from which the hedge delay is taken
+	 */
+	private final Histogram replicaSearchTime;
+	private final double hedgeQuantile;
+	private final long hedgeMinDelayNanos;
+
+	/**
+	 * Runs replica searches when hedging. Threads are only started while searches are in progress.
+	 */
+	private final ThreadPoolExecutor searchExecutor = new ThreadPoolExecutor(0, MAX_HEDGED_SEARCH_THREADS,
+			60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ldap-search-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Fails lookups fast while LDAP is down, rather than each waiting for the LDAP timeouts
+	 */
+	private final CircuitBreaker ldapBreaker;
+
+	/**
+	 * Users queued or being refreshed ahead of expiring
+	 */
+	private final Set<String> refreshesPending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Refreshes users ahead of expiring, with at most cache-refresh-threads queries at once.
+	 * Refreshes are dropped when the queue is full; the user is refreshed on a later lookup.
+	 */
+	private final ThreadPoolExecutor refreshExecutor = createRefreshExecutor(settings.getCacheRefreshThreads());
+
+	private static ThreadPoolExecutor createRefreshExecutor(int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), new ThreadFactory() {
+					private final AtomicInteger threadCount = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ldap-refresh-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Looks users up on the LDAP replicas configured in {@link Settings}
+	 */
+	public LdapUserDetailsService() {
+		this(settings.getLdapReplicaSet(),
+				new CircuitBreaker("ldap", settings.getLdapBreakerFailureThreshold(), settings.getLdapBreakerOpenSeconds()),
+				Metrics.getInstance().histogram("ssh_authz_ldap_search_seconds", "Time taken by a successful search on one LDAP replica"),
+				settings.getLdapHedgePercentile(), settings.getLdapHedgeMinDelayMillis());
+	}
+
+	/**
+	 * @param replicaSet the LDAP replicas to search
+	 * @param ldapBreaker the circuit breaker guarding LDAP queries
+	 * @param replicaSearchTime records successful replica search times, from which the hedge delay is taken
+	 * @param hedgePercentile percentile of search times after which a search is hedged; 0 to not hedge
+	 * @param hedgeMinDelayMillis minimum delay before hedging a search
+	 */
+	LdapUserDetailsService(LdapReplicaSet replicaSet, CircuitBreaker ldapBreaker, Histogram replicaSearchTime,
+			double hedgePercentile, long hedgeMinDelayMillis) {
+		this.replicaSet = replicaSet;
+		this.ldapBreaker = ldapBreaker;
+		this.replicaSearchTime = replicaSearchTime;
+		this.hedgeQuantile = hedgePercentile / 100;
+		this.hedgeMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMillis);
+	}
+
 	/**
 	 * Queries LDAP for the given user
 	 * @param userName used in the search filter
@@ -36,50 +191,464 @@ public class LdapUserDetailsService implements UserDetailsService {
 	@Override
 	public UserDetails loadUserByUsername(String userName)
 			throws UsernameNotFoundException {
-		UserDetailsCache userCache = new UserDetailsCache();
-		UserDetails userFromCache = userCache.getUserDetails(userName);
-		if (userFromCache != null) {
-			log.info("User lookup cache hit: mapped user "+userName+" to "+userFromCache.getUsername());
-			return userFromCache;
-		} else {
-			log.info("User lookup cache miss; querying LDAP...");
+		CachedUserDetails userFromCache = userCache.getCachedUserDetails(userName);
+		if (userFromCache != null && !isExpired(userFromCache)) {
+			cacheHits.increment();
+			log.info("User lookup cache hit: mapped user "+userName+" to "+userFromCache.getUserDetails().getUsername());
+			if (userFromCache.getLoadedAt() < refreshAfter()) {
+				refreshAhead(userName);
+			}
+			return userFromCache.getUserDetails();
+		} else if (userCache.isUnknownUser(userName)) {
+			cacheUnknownHits.increment();
+			log.info("User lookup cache hit: "+userName+" was recently not found in LDAP");
+			throw new UsernameNotFoundException(userName);
+		}
+
+		CompletableFuture<UserDetails> lookup = new CompletableFuture<UserDetails>();
+		CompletableFuture<UserDetails> lookupInFlight = lookupsInFlight.putIfAbsent(userName, lookup);
+		if (lookupInFlight != null) {
+			coalescedLookups.increment();
+			log.info("User lookup cache miss; waiting for a lookup of "+userName+" already in progress");
+			return awaitLookup(userName, lookupInFlight);
 		}
 		try {
-			// Set up the environment for creating the initial context
-			Hashtable<String, String> env = new Hashtable<String, String>();
-			env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-			env.put(Context.PROVIDER_URL, settings.getLdapProviderUrl());
-
-			// Authenticate if credentials were provided
-			if (settings.getLdapSecurityPrincipal() != null) {
-				env.put(Context.SECURITY_AUTHENTICATION, "simple");
-				env.put(Context.SECURITY_PRINCIPAL, settings.getLdapSecurityPrincipal());
-				env.put(Context.SECURITY_CREDENTIALS, settings.getLdapSecurityPassword());
+			UserDetails userDetails = lookUpUser(userName);
+			lookup.complete(userDetails);
+			return userDetails;
+		} catch (RuntimeException e) {
+			lookup.completeExceptionally(e);
+			throw e;
+		} finally {
+			lookupsInFlight.remove(userName, lookup);
+		}
+	}
+
+	/**
+	 * Waits for another thread's lookup of the same user
+	 * @param userName the user
+	 * @param lookup the lookup in progress
+	 * @return the user details found by the other thread
+	 * @throws UsernameNotFoundException if the other thread could not find the user
+	 */
+	private static UserDetails awaitLookup(String userName, CompletableFuture<UserDetails> lookup)
+			throws UsernameNotFoundException {
+		try {
+			return lookup.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UsernameNotFoundException) {
+				throw new UsernameNotFoundException(userName, e.getCause());
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
-			DirContext ctx = new InitialDirContext(env);
-			String searchFilter = String.format(settings.getLdapSearchFilter(), escapeLDAPSearchFilter(userName));
-			SearchControls searchControls = new SearchControls();
-			if (settings.getLdapSearchSubtree()) {
-				searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			throw e;
+		}
+	}
+
+	/**
+	 * Looks up a user, checking the cache again in case a lookup that finished since this
+	 * thread's cache miss stored the user, then querying LDAP
+	 * @param userName used in the search filter
+	 * @return the user details
+	 * @throws UsernameNotFoundException if the user could not be found
+	 */
+	private UserDetails lookUpUser(String userName) throws UsernameNotFoundException {
+		CachedUserDetails userFromCache = userCache.getCachedUserDetails(userName);
+		if (userFromCache != null && !isExpired(userFromCache)) {
+			cacheHits.increment();
+			return userFromCache.getUserDetails();
+		} else if (userCache.isUnknownUser(userName)) {
+			cacheUnknownHits.increment();
+			throw new UsernameNotFoundException(userName);
+		}
+		cacheMisses.increment();
+		log.info("User lookup cache miss; querying LDAP...");
+		try {
+			return queryLdap(userName);
+		} catch (UsernameNotFoundException e) {
+			if (e.getCause() != null && userFromCache != null && isWithinGracePeriod(userFromCache)) {
+				staleHits.increment();
+				log.warn("LDAP is unavailable; using the expired cache entry for "+userName);
+				return userFromCache.getUserDetails();
 			}
-			NamingEnumeration<SearchResult> results = ctx.search(settings.getLdapSearchBaseDn(), searchFilter, searchControls);
-			if (results.hasMore()) {
-				UserDetails userObject = createUserObject(results.next(), userName);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param cachedUser a cached user
+	 * @return true if the user was loaded longer than the cache expiry ago, and should be looked up again
+	 */
+	private boolean isExpired(CachedUserDetails cachedUser) {
+		return cachedUser.getLoadedAt() < System.currentTimeMillis() - cacheExpiryMillis;
+	}
+
+	/**
+	 * @param cachedUser an expired cached user
+	 * @return true if the user may still be used while LDAP is unavailable
+	 */
+	private boolean isWithinGracePeriod(CachedUserDetails cachedUser) {
+		return cachedUser.getLoadedAt() >= System.currentTimeMillis() - cacheExpiryMillis - staleGraceMillis;
+	}
+
+	/**
+	 * @return users loaded before this time, in milliseconds since the epoch, are refreshed ahead
+	 * of expiring
+	 */
+	private long refreshAfter() {
+		if (refreshAheadMillis <= 0) {
+			return Long.MIN_VALUE;
+		}
+		return System.currentTimeMillis() - cacheExpiryMillis + refreshAheadMillis;
+	}
+
+	/**
+	 * Queues a background refresh of a cached user, unless one is already queued or running, the
+	 * refresh queue is full, or LDAP is unavailable
+	 * @param userName the user
+	 */
+	private void refreshAhead(final String userName) {
+		if (ldapBreaker.getState() != CircuitBreaker.State.CLOSED || !refreshesPending.add(userName)) {
+			return;
+		}
+		try {
+			refreshExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh(userName);
+					} finally {
+						refreshesPending.remove(userName);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshesPending.remove(userName);
+			log.debug("Refresh queue full; not refreshing "+userName);
+		}
+	}
+
+	/**
+	 * Queries LDAP for a cached user, unless a lookup of the user is already in progress. Request
+	 * threads that miss the cache meanwhile wait for the refresh rather than querying LDAP.
+	 * @param userName the user
+	 */
+	private void refresh(String userName) {
+		CompletableFuture<UserDetails> lookup = new CompletableFuture<UserDetails>();
+		if (lookupsInFlight.putIfAbsent(userName, lookup) != null) {
+			return;
+		}
+		try {
+			lookup.complete(queryLdap(userName));
+			refreshesSucceeded.increment();
+		} catch (UsernameNotFoundException e) {
+			lookup.completeExceptionally(e);
+			if (e.getCause() == null) {
+				// No longer in LDAP; queryLdap has removed the user from the cache
+				refreshesNotFound.increment();
+			} else {
+				log.warn("Could not refresh "+userName+"; keeping the cached user", e);
+				refreshesFailed.increment();
+			}
+		} catch (RuntimeException e) {
+			lookup.completeExceptionally(e);
+			log.warn("Could not refresh "+userName+"; keeping the cached user", e);
+			refreshesFailed.increment();
+		} finally {
+			lookupsInFlight.remove(userName, lookup);
+		}
+	}
+
+	/**
+	 * Queries LDAP for a user and caches the result, including a user that could not be found
+	 * @param userName used in the search filter
+	 * @return the user details
+	 * @throws UsernameNotFoundException if the user could not be found, with the cause if the
+	 * search failed or the LDAP circuit breaker is open
+	 */
+	private UserDetails queryLdap(String userName) throws UsernameNotFoundException {
+		if (!ldapBreaker.allowRequest()) {
+			breakerRejections.increment();
+			throw new UsernameNotFoundException(userName,
+					new ServiceUnavailableException("LDAP circuit breaker is open"));
+		}
+		long start = System.nanoTime();
+		EventSink.LdapSearchEvent event = Events.sink().beginLdapSearch();
+		String searchFilter = null;
+		int resultCount = -1;
+		try {
+			searchFilter = String.format(settings.getLdapSearchFilter(), escapeLDAPSearchFilter(userName));
+			SearchResult result;
+			try {
+				result = search(searchFilter);
+			} catch (NamingException | RuntimeException e) {
+				ldapBreaker.recordFailure();
+				throw e;
+			}
+			ldapBreaker.recordSuccess();
+			if (result != null) {
+				resultCount = 1;
+				UserDetails userObject = createUserObject(result, userName);
 				log.info("Mapped "+userName+" to LDAP uid "+userObject.getUsername());
 				userCache.saveUserDetails(userName, userObject);
 				log.info("User details stored in cache.");
 				return userObject;
 			} else {
+				resultCount = 0;
 				log.info("Could not find "+userName+" in LDAP");
+				userCache.saveUnknownUser(userName);
 				throw new UsernameNotFoundException(userName);
 			}
 		} catch (NamingException e) {
 			e.printStackTrace();
 			throw new UsernameNotFoundException(userName, e);
+		} finally {
+			ldapLookupTime.observeSince(start);
+			event.commit(searchFilter, resultCount);
 		}
-		
 	}
 	
+	/**
+	 * Searches for a user on the LDAP replicas, trying the fastest healthy replica first and
+	 * failing over to the others if a replica can't be reached or times out. If hedging is enabled
+	 * and the first replica is slower than usual, the search is also sent to the second replica
+	 * and whichever answers first is used.
+	 * @param searchFilter the search filter
+	 * @return the first search result, or null if there are none
+	 * @throws NamingException if the search failed on every replica, or the search itself is invalid
+	 */
+	private SearchResult search(String searchFilter) throws NamingException {
+		SearchControls searchControls = new SearchControls();
+		if (settings.getLdapSearchSubtree()) {
+			searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		}
+		List<LdapReplicaSet.Replica> replicas = replicaSet.getReplicasByPreference();
+		NamingException lastFailure = null;
+		int next = 0;
+		long hedgeDelayNanos = hedgeDelayNanos();
+		if (hedgeDelayNanos > 0 && replicas.size() > 1 && replicas.get(1).isHealthy()) {
+			try {
+				return hedgedSearch(replicas.get(0), replicas.get(1), searchFilter, searchControls, hedgeDelayNanos);
+			} catch (RejectedExecutionException e) {
+				log.debug("Too many LDAP searches in progress to hedge; searching without hedging");
+			} catch (NamingException e) {
+				if (!isReplicaFailure(e)) {
+					throw e;
+				}
+				// Both replicas failed; fail over to the rest
+				lastFailure = e;
+				next = 2;
+			}
+		}
+		for (int i = next; i < replicas.size(); i++) {
+			try {
+				return searchReplica(replicas.get(i), searchFilter, searchControls);
+			} catch (NamingException e) {
+				if (!isReplicaFailure(e)) {
+					throw e;
+				}
+				lastFailure = e;
+			}
+		}
+		throw lastFailure;
+	}
+
+	/**
+	 * @return how long to wait for a search before hedging it, or 0 if searches are not hedged,
+	 * or too few searches have been timed to know what is slow
+	 */
+	private long hedgeDelayNanos() {
+		if (hedgeQuantile <= 0 || replicaSearchTime.getCount() < HEDGE_MIN_SAMPLES) {
+			return 0;
+		}
+		return Math.max(hedgeMinDelayNanos, replicaSearchTime.quantileNanos(hedgeQuantile));
+	}
+
+	/**
+	 * Searches the primary replica and, if it hasn't answered within the hedge delay, the secondary
+	 * replica too. The first answer is used and the other search is cancelled. If the primary
+	 * fails before the delay, the secondary is searched straight away.
+	 * @param primary the preferred replica
+	 * @param secondary the replica to hedge with
+	 * @param searchFilter the search filter
+	 * @param searchControls the search controls
+	 * @param hedgeDelayNanos how long to wait for the primary before hedging
+	 * @return the first search result, or null if there are none
+	 * @throws NamingException if both searches failed, or the search itself is invalid
+	 * @throws RejectedExecutionException if the primary search could not be started
+	 */
+	private SearchResult hedgedSearch(LdapReplicaSet.Replica primary, LdapReplicaSet.Replica secondary,
+			String searchFilter, SearchControls searchControls, long hedgeDelayNanos) throws NamingException {
+		CompletionService<SearchResult> searches = new ExecutorCompletionService<SearchResult>(searchExecutor);
+		Future<SearchResult> primarySearch = searches.submit(replicaSearch(primary, searchFilter, searchControls));
+		Future<SearchResult> secondarySearch = null;
+		boolean hedged = false;
+		try {
+			Future<SearchResult> done = searches.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+			if (done == null) {
+				secondarySearch = trySubmit(searches, secondary, searchFilter, searchControls);
+				hedged = (secondarySearch != null);
+			}
+			int pending = (secondarySearch == null) ? 1 : 2;
+			NamingException lastFailure = null;
+			while (pending > 0) {
+				if (done == null) {
+					done = searches.take();
+				}
+				pending--;
+				try {
+					SearchResult result = getSearchResult(done);
+					if (hedged) {
+						(done == secondarySearch ? hedgesWon : hedgesLost).increment();
+					}
+					return result;
+				} catch (NamingException e) {
+					if (!isReplicaFailure(e)) {
+						throw e;
+					}
+					lastFailure = e;
+				}
+				done = null;
+				if (secondarySearch == null) {
+					// The primary failed before the hedge delay
+					secondarySearch = trySubmit(searches, secondary, searchFilter, searchControls);
+					if (secondarySearch != null) {
+						pending++;
+					}
+				}
+			}
+			throw lastFailure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Interrupted waiting for an LDAP search");
+		} finally {
+			// Interrupts the search that lost; its connection is closed rather than reused
+			primarySearch.cancel(true);
+			if (secondarySearch != null) {
+				secondarySearch.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @return the search, or null if there are too many searches in progress to start it
+	 */
+	private Future<SearchResult> trySubmit(CompletionService<SearchResult> searches, LdapReplicaSet.Replica replica,
+			String searchFilter, SearchControls searchControls) {
+		try {
+			return searches.submit(replicaSearch(replica, searchFilter, searchControls));
+		} catch (RejectedExecutionException e) {
+			log.debug("Too many LDAP searches in progress to search "+replica.getUrl());
+			return null;
+		}
+	}
+
+	private Callable<SearchResult> replicaSearch(final LdapReplicaSet.Replica replica,
+			final String searchFilter, final SearchControls searchControls) {
+		return new Callable<SearchResult>() {
+			@Override
+			public SearchResult call() throws NamingException {
+				return searchReplica(replica, searchFilter, searchControls);
+			}
+		};
+	}
+
+	private static SearchResult getSearchResult(Future<SearchResult> search) throws NamingException, InterruptedException {
+		try {
+			return search.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof NamingException) {
+				throw (NamingException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Searches one replica, recording its latency, or marking it unhealthy if it failed
+	 * @param replica the replica
+	 * @param searchFilter the search filter
+	 * @param searchControls the search controls
+	 * @return the first search result, or null if there are none
+	 * @throws NamingException if the search failed
+	 */
+	private SearchResult searchReplica(LdapReplicaSet.Replica replica, String searchFilter,
+			SearchControls searchControls) throws NamingException {
+		long start = System.nanoTime();
+		try {
+			SearchResult result = search(replica.getPool(), searchFilter, searchControls);
+			long elapsed = System.nanoTime() - start;
+			replica.recordSuccess(elapsed);
+			replicaSearchTime.observeNanos(elapsed);
+			return result;
+		} catch (NamingException e) {
+			// A hedged search that lost is interrupted; that is not the replica's fault
+			boolean cancelled = Thread.currentThread().isInterrupted() || e instanceof InterruptedNamingException;
+			if (isReplicaFailure(e) && !cancelled) {
+				replica.recordFailure();
+				log.warn("LDAP search failed on "+replica.getUrl()+": "+e);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @param e an exception thrown by a search
+	 * @return true if the replica failed, rather than the search being invalid, so that another
+	 * replica should be tried
+	 */
+	private static boolean isReplicaFailure(NamingException e) {
+		return !(e instanceof InvalidSearchFilterException
+				|| e instanceof InvalidNameException
+				|| e instanceof NameNotFoundException);
+	}
+
+	/**
+	 * Searches for a user on a pooled connection to one replica. The server may have dropped a
+	 * pooled connection since it was last used, so a search that fails to reach the server is
+	 * retried once on another connection.
+	 * @param pool the replica's connection pool
+	 * @param searchFilter the search filter
+	 * @param searchControls the search controls
+	 * @return the first search result, or null if there are none
+	 * @throws NamingException if the search failed
+	 */
+	private SearchResult search(LdapContextPool pool, String searchFilter, SearchControls searchControls) throws NamingException {
+		for (int attempt = 1; ; attempt++) {
+			DirContext ctx = pool.borrow();
+			try {
+				NamingEnumeration<SearchResult> results = ctx.search(settings.getLdapSearchBaseDn(), searchFilter, searchControls);
+				SearchResult result;
+				try {
+					result = results.hasMore() ? results.next() : null;
+				} finally {
+					results.close();
+				}
+				pool.release(ctx);
+				return result;
+			} catch (CommunicationException | ServiceUnavailableException e) {
+				pool.invalidate(ctx);
+				if (attempt >= MAX_SEARCH_ATTEMPTS) {
+					throw e;
+				}
+				log.info("Lost the connection to the LDAP server; retrying the search on another connection");
+			} catch (NamingException e) {
+				// e.g. after a read timeout, the connection may still be waiting for the response
+				if (isReplicaFailure(e)) {
+					pool.invalidate(ctx);
+				} else {
+					pool.release(ctx);
+				}
+				throw e;
+			} catch (RuntimeException e) {
+				pool.release(ctx);
+				throw e;
+			}
+		}
+	}
+
 	/**
 	 * Converts an LDAP search result into a {@link UserDetails} object
 	 * @param massiveLdapSearchResult the ldap search result
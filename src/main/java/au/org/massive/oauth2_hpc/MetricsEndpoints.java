@@ -0,0 +1,43 @@
+package au.org.massive.oauth2_hpc;
+
+import au.org.massive.oauth2_hpc.metrics.Metrics;
+import org.apache.log4j.Logger;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Controller class for the server metrics
+ */
+@RestController
+public class MetricsEndpoints {
+
+	private static final Logger log = Logger.getLogger(MetricsEndpoints.class.getName());
+
+	private static final Settings settings = Settings.getInstance();
+
+	public static final String PROMETHEUS_TEXT_MEDIA_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * Metrics endpoint protected by OAuth2, for users listed in admin-users.
+	 * Returns the signing stage timings, LDAP lookup times and user cache counters in the
+	 * Prometheus text format, e.g. for a p99 signing latency alert:
+	 * histogram_quantile(0.99, rate(ssh_authz_signing_stage_seconds_bucket{stage="signature"}[5m]))
+	 *
+	 * @return the metrics
+	 */
+	@RequestMapping(value="/api/v1/metrics",
+			method=RequestMethod.GET,
+			produces=PROMETHEUS_TEXT_MEDIA_TYPE)
+	public ResponseEntity<String> metrics() {
+		String remoteHPCUser = (String)SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+		if (!settings.isAdminUser(remoteHPCUser)) {
+			log.info("Refused to show metrics to "+remoteHPCUser+" because the user is not an administrator.");
+			return new ResponseEntity<String>(HttpStatus.FORBIDDEN);
+		}
+		return new ResponseEntity<String>(Metrics.getInstance().toPrometheusText(), HttpStatus.OK);
+	}
+}
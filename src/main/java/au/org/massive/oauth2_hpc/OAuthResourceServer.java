@@ -39,7 +39,7 @@ public class OAuthResourceServer extends ResourceServerConfigurerAdapter {
 	@Bean
 	public AuthenticationManager authenticationManager() {
 		OAuth2AuthenticationManager authenticationManager = new OAuth2AuthenticationManager();
-		authenticationManager.setTokenServices(defaultTokenServices());
+		authenticationManager.setTokenServices(new TimedResourceServerTokenServices(defaultTokenServices()));
 		return authenticationManager;
 	}
 	
@@ -55,7 +55,7 @@ public class OAuthResourceServer extends ResourceServerConfigurerAdapter {
 	public void configure(ResourceServerSecurityConfigurer resources)
 			throws Exception {
 		resources.authenticationManager(authenticationManager())
-			.tokenServices(defaultTokenServices())
+			.tokenServices(new TimedResourceServerTokenServices(defaultTokenServices()))
 			.resourceId(RESOURCE_ID);
 	}
 
@@ -2,14 +2,13 @@ package au.org.massive.oauth2_hpc;
 
 import java.io.File;
 import java.io.IOException;
-import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.*;
 
 import org.apache.commons.configuration.Configuration;
@@ -22,9 +21,10 @@ import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
 import org.apache.log4j.Logger;
 
+import au.org.massive.oauth2_hpc.ssh.CAKeyHolder;
+import au.org.massive.oauth2_hpc.ssh.CASigner;
+import au.org.massive.oauth2_hpc.ssh.SSHSignatureAlgorithm;
 import au.org.massive.oauth2_hpc.ssh.KeyCodec;
-import au.org.massive.oauth2_hpc.ssh.RSAPrivateKeyCodec;
-import au.org.massive.oauth2_hpc.ssh.RSAPublicKeyCodec;
 import org.mitre.oauth2.model.ClientDetailsEntity.AuthMethod;
 
 /**
@@ -39,6 +39,11 @@ public class Settings {
 	private static Settings instance;
 	private Configuration config;
 	private static KeyPair jwtSigningKeypair;
+	// Volatile so that the getters, which are called for every signing request, only lock on first use
+	private static volatile CAKeyHolder caKeyHolder;
+	private static volatile CASigner caSigner;
+	private static volatile SigningExecutor signingExecutor;
+	private static LdapReplicaSet ldapReplicaSet;
 	
 	private Settings() {
 		if (config == null) {
@@ -78,6 +83,30 @@ public class Settings {
 		return userBlacklist;
 	}
 
+	/**
+	 * @return users allowed to use administrative endpoints, such as host certificate signing
+	 */
+	public List<String> getAdminUsers() {
+		List<String> adminUsers = new LinkedList<>();
+		for (Object u : config.getList("admin-users")) {
+			adminUsers.add((String) u);
+		}
+		return adminUsers;
+	}
+
+	/**
+	 * @param user a user name
+	 * @return true if the user is listed in admin-users, ignoring case
+	 */
+	public boolean isAdminUser(String user) {
+		for (String u : getAdminUsers()) {
+			if (u.toLowerCase().equals(user.toLowerCase())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public String getCacheFileLocation() {
 		return config.getString("cache-file", "ssh-authz-cache.db");
 	}
@@ -85,6 +114,130 @@ public class Settings {
 	public long getCacheExpiryHours() {
 		return config.getLong("cache-expiry-hours", 24);
 	}
+
+	/**
+	 * @return how the cache is stored; in the cache file by default
+	 */
+	public CacheStorage getCacheStorage() {
+		String storage = config.getString("cache-storage", "file");
+		try {
+			return CacheStorage.getStorage(storage);
+		} catch (IllegalArgumentException e) {
+			CacheStorage cacheStorage = CacheStorage.FILE;
+			log.warn("Cache storage " + storage + " is invalid; using default: " + cacheStorage.name());
+			log.warn("Valid choices are: ");
+			for (CacheStorage c : CacheStorage.values()) {
+				log.warn(" * " + c.name());
+			}
+			return cacheStorage;
+		}
+	}
+
+	/**
+	 * @return size in megabytes above which the least recently used cache entries are evicted, or 0 for no limit
+	 */
+	public long getCacheMaxSizeMB() {
+		return config.getLong("cache-max-size-mb", 0);
+	}
+
+	/**
+	 * @return number of entries per cache above which the least recently used are evicted, or 0 for no limit
+	 */
+	public long getCacheMaxEntries() {
+		return config.getLong("cache-max-entries", 0);
+	}
+
+	/**
+	 * @return hours between compactions of the cache store, which reclaim space left by expired entries, or 0 to never compact
+	 */
+	public long getCacheCompactIntervalHours() {
+		return config.getLong("cache-compact-interval-hours", 24);
+	}
+
+	/**
+	 * @return when cache writes are committed to the cache file; batched by default
+	 */
+	public CacheDurability getCacheDurability() {
+		String durability = config.getString("cache-durability", "batched");
+		try {
+			return CacheDurability.getDurability(durability);
+		} catch (IllegalArgumentException e) {
+			CacheDurability cacheDurability = CacheDurability.BATCHED;
+			log.warn("Cache durability " + durability + " is invalid; using default: " + cacheDurability.name());
+			log.warn("Valid choices are: ");
+			for (CacheDurability d : CacheDurability.values()) {
+				log.warn(" * " + d.name());
+			}
+			return cacheDurability;
+		}
+	}
+
+	/**
+	 * @return with batched durability, the longest time a cache write waits to be committed
+	 */
+	public long getCacheCommitIntervalMillis() {
+		return config.getLong("cache-commit-interval-millis", 1000);
+	}
+
+	/**
+	 * @return with batched durability, the number of pending writes that triggers a commit straight away
+	 */
+	public int getCacheCommitBatchSize() {
+		return config.getInt("cache-commit-batch-size", 100);
+	}
+
+	/**
+	 * @return maximum number of users held in memory in front of the cache file
+	 */
+	public long getUserCacheMemorySize() {
+		return config.getLong("user-cache-memory-size", 10000);
+	}
+
+	/**
+	 * @return minutes a user is held in memory before being read from the cache file again;
+	 * defaults to the cache expiry
+	 */
+	public long getUserCacheMemoryExpiryMinutes() {
+		return config.getLong("user-cache-memory-expiry-minutes", getCacheExpiryHours() * 60);
+	}
+
+	/**
+	 * @return minutes before a cached user expires within which a lookup of the user refreshes it
+	 * from LDAP in the background; defaults to a tenth of the cache expiry, 0 to not refresh ahead
+	 */
+	public long getCacheRefreshAheadMinutes() {
+		return config.getLong("cache-refresh-ahead-minutes", getCacheExpiryHours() * 6);
+	}
+
+	/**
+	 * @return maximum number of background refreshes querying LDAP at once
+	 */
+	public int getCacheRefreshThreads() {
+		return config.getInt("cache-refresh-threads", 2);
+	}
+
+	/**
+	 * @return hours after a cached user expires that it is still used if LDAP is unavailable;
+	 * 0 to fail lookups of expired users while LDAP is unavailable
+	 */
+	public long getCacheStaleGraceHours() {
+		return config.getLong("cache-stale-grace-hours", 24);
+	}
+
+	/**
+	 * @return seconds a user that could not be found is remembered, so that repeated requests
+	 * for the user don't query LDAP; 0 to not remember unknown users
+	 */
+	public long getUserCacheNegativeExpirySeconds() {
+		return config.getLong("user-cache-negative-expiry-seconds", 60);
+	}
+
+	/**
+	 * @return maximum number of unknown users remembered
+	 */
+	public long getUserCacheNegativeSize() {
+		return config.getLong("user-cache-negative-size", 10000);
+	}
 	
 	public String getTomcatProtocol() { return config.getString("tomcat-protocol", "AJP/1.3"); }
 	
@@ -98,6 +251,18 @@ public class Settings {
 	public String getLdapProviderUrl() {
 		return config.getString("ldap-provider-url");
 	}
+
+	/**
+	 * @return the LDAP servers to look users up in; ldap-provider-url may list several replicas
+	 * of the same directory, separated by commas
+	 */
+	public List<String> getLdapProviderUrls() {
+		List<String> urls = new ArrayList<String>();
+		for (Object url : config.getList("ldap-provider-url")) {
+			urls.add(((String) url).trim());
+		}
+		return urls;
+	}
 	
 	public String getLdapSecurityPrincipal() {
 		return concatList("ldap-security-principal", ",");
@@ -107,6 +272,61 @@ public class Settings {
 		return config.getString("ldap-security-password");
 	}
 	
+	/**
+	 * Returns the LDAP replicas used for user lookups, creating them on first use. Each replica is
+	 * probed every <pre>ldap-probe-interval-seconds</pre> (default 10) and has its own pool of bound
+	 * connections. Each pool holds up to <pre>ldap-pool-size</pre> connections (default 8), closes connections idle for
+	 * <pre>ldap-pool-idle-timeout-seconds</pre> (default 300), and lookups wait up to
+	 * <pre>ldap-pool-acquire-timeout-millis</pre> (default 5000) for a free connection. Connecting times out
+	 * after <pre>ldap-connect-timeout-millis</pre> (default 5000) and reading a response after
+	 * <pre>ldap-read-timeout-millis</pre> (default 10000).
+	 * @return the LDAP replica set
+	 */
+	public synchronized LdapReplicaSet getLdapReplicaSet() {
+		if (ldapReplicaSet == null) {
+			List<LdapContextPool> pools = new ArrayList<LdapContextPool>();
+			for (String url : getLdapProviderUrls()) {
+				pools.add(new LdapContextPool(url, getLdapSecurityPrincipal(), getLdapSecurityPassword(),
+						config.getInt("ldap-pool-size", 8),
+						config.getLong("ldap-pool-idle-timeout-seconds", 300),
+						config.getLong("ldap-pool-acquire-timeout-millis", 5000),
+						config.getLong("ldap-connect-timeout-millis", 5000),
+						config.getLong("ldap-read-timeout-millis", 10000)));
+			}
+			ldapReplicaSet = new LdapReplicaSet(pools, config.getLong("ldap-probe-interval-seconds", 10));
+		}
+		return ldapReplicaSet;
+	}
+	
+	/**
+	 * @return percentile of LDAP search times after which a search that has not returned is also
+	 * sent to the next replica, e.g. 95; 0 to not hedge searches
+	 */
+	public double getLdapHedgePercentile() {
+		return config.getDouble("ldap-hedge-percentile", 0);
+	}
+
+	/**
+	 * @return minimum milliseconds to wait before hedging a search, however fast searches usually are
+	 */
+	public long getLdapHedgeMinDelayMillis() {
+		return config.getLong("ldap-hedge-min-delay-millis", 5);
+	}
+
+	/**
+	 * @return consecutive LDAP failures after which lookups stop querying LDAP for a while
+	 */
+	public int getLdapBreakerFailureThreshold() {
+		return config.getInt("ldap-breaker-failure-threshold", 5);
+	}
+
+	/**
+	 * @return seconds lookups stop querying LDAP for once the failure threshold is reached
+	 */
+	public long getLdapBreakerOpenSeconds() {
+		return config.getLong("ldap-breaker-open-seconds", 30);
+	}
+
 	public String getLdapSearchBaseDn() {
 		return concatList("ldap-search-base-dn", ",");
 	}
@@ -207,28 +427,124 @@ public class Settings {
 		return config.getString("registered-clients-file");
 	}
 	
-	public RSAPublicKey getCAPublicKey() {
-		String caPublicKeyFilePath = config.getString("ssh-ca-public-key");
-		try {
-			return RSAPublicKeyCodec.decodeKeyFromSSHBase64Format(new File(caPublicKeyFilePath));
-		} catch (InvalidKeyException | IOException e) {
-			throw new RuntimeException(e);
+	/**
+	 * Returns the holder of the SSH CA keys, decoding the key files on first use
+	 * @return the CA key holder
+	 */
+	public CAKeyHolder getCAKeyHolder() {
+		CAKeyHolder holder = caKeyHolder;
+		if (holder == null) {
+			holder = createCAKeyHolder();
+		}
+		return holder;
+	}
+
+	private synchronized CAKeyHolder createCAKeyHolder() {
+		if (caKeyHolder == null) {
+			String caPublicKeyFilePath = config.getString("ssh-ca-public-key");
+			String caPrivateKeyFilePath = config.getString("ssh-ca-private-key");
+			String caPrivateKeyPassphrase = config.getString("ssh-ca-private-key-passphrase");
+			CAKeyHolder holder = new CAKeyHolder(new File(caPublicKeyFilePath), new File(caPrivateKeyFilePath), caPrivateKeyPassphrase,
+					getCASignatureAlgorithm());
+			if (config.getBoolean("ssh-ca-reload-on-change", true)) {
+				holder.watch();
+			}
+			caKeyHolder = holder;
+		}
+		return caKeyHolder;
+	}
+	
+	/**
+	 * Returns the signer for SSH certificates. The fastest available security provider is
+	 * selected when the signer is first created.
+	 * @return the CA signer
+	 */
+	public CASigner getCASigner() {
+		CASigner signer = caSigner;
+		if (signer == null) {
+			signer = createCASigner();
+		}
+		return signer;
+	}
+
+	private synchronized CASigner createCASigner() {
+		if (caSigner == null) {
+			caSigner = new CASigner(getCAKeyHolder());
 		}
+		return caSigner;
 	}
 	
-	public RSAPrivateKey getCAPrivateKey() {
-		String caPrivateKeyFilePath = config.getString("ssh-ca-private-key");
-		String caPrivateKeyPassphrase = config.getString("ssh-ca-private-key-passphrase");
+	/**
+	 * Returns the algorithm used to sign certificates, or null to use the default for the CA key type
+	 * (rsa-sha2-512 for RSA keys). RSA CA keys can sign with ssh-rsa, rsa-sha2-256 or rsa-sha2-512;
+	 * Ed25519 and ECDSA keys have a single algorithm each.
+	 * @return the signature algorithm
+	 */
+	public SSHSignatureAlgorithm getCASignatureAlgorithm() {
+		String algorithm = config.getString("ssh-ca-signature-algorithm");
+		if (algorithm == null) {
+			return null;
+		}
 		try {
-			return RSAPrivateKeyCodec.decodePEMPrivateKey(new File(caPrivateKeyFilePath), caPrivateKeyPassphrase);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			return SSHSignatureAlgorithm.fromName(algorithm);
+		} catch (IllegalArgumentException e) {
+			log.warn("SSH CA signature algorithm " + algorithm + " is invalid; using the default for the CA key");
+			log.warn("Valid choices are: ");
+			for (SSHSignatureAlgorithm a : SSHSignatureAlgorithm.values()) {
+				log.warn(" * " + a.getName());
+			}
+			return null;
 		}
 	}
 	
+	public PublicKey getCAPublicKey() {
+		return getCAKeyHolder().getKeys().getPublicKey();
+	}
+	
+	public PrivateKey getCAPrivateKey() {
+		return getCAKeyHolder().getKeys().getPrivateKey();
+	}
+	
 	public int getMaxSSHCertValidity() {
 		return config.getInt("ssh-cert-max-valid-days", 1);
 	}
+	
+	/**
+	 * Returns the pool that signs certificates, creating it on first use. The pool has
+	 * <pre>signing-threads</pre> threads, one per core by default, and queues up to
+	 * <pre>signing-queue-size</pre> keys.
+	 * @return the signing executor
+	 */
+	public SigningExecutor getSigningExecutor() {
+		SigningExecutor executor = signingExecutor;
+		if (executor == null) {
+			executor = createSigningExecutor();
+		}
+		return executor;
+	}
+
+	private synchronized SigningExecutor createSigningExecutor() {
+		if (signingExecutor == null) {
+			signingExecutor = new SigningExecutor(config.getInt("signing-threads", Runtime.getRuntime().availableProcessors()),
+					config.getInt("signing-queue-size", 1000));
+		}
+		return signingExecutor;
+	}
+	
+	/**
+	 * @return seconds a client is asked to wait before retrying when the signing queue is full
+	 */
+	public int getSigningRetryAfterSeconds() {
+		return config.getInt("signing-retry-after-seconds", 2);
+	}
+	
+	public int getMaxSSHHostCertValidity() {
+		return config.getInt("ssh-host-cert-max-valid-days", 365);
+	}
+	
+	public int getMaxSigningBatchSize() {
+		return config.getInt("max-signing-batch-size", 500);
+	}
 
 	public String getRemoteResourceName() {
 		return config.getString("remote-resource-name", "remote systems on your behalf using an SSH certificate");
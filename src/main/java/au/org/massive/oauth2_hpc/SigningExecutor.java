@@ -0,0 +1,35 @@
+package au.org.massive.oauth2_hpc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size pool of threads that sign certificates. Signing is CPU bound, so the pool
+ * defaults to one thread per core; batch requests spread their keys across the pool.
+ * Keys waiting to be signed are held in a bounded queue. When it is full, further tasks are
+ * rejected with a {@link java.util.concurrent.RejectedExecutionException}, so that a burst of
+ * requests is turned away quickly instead of queueing without limit.
+ * @see Settings#getSigningExecutor()
+ */
+public class SigningExecutor extends ThreadPoolExecutor {
+
+	/**
+	 * @param threads number of signing threads
+	 * @param queueSize maximum number of keys waiting to be signed
+	 */
+	public SigningExecutor(int threads, int queueSize) {
+		super(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ssh-signing-"+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
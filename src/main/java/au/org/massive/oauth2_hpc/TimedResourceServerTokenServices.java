@@ -0,0 +1,39 @@
+package au.org.massive.oauth2_hpc;
+
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+import au.org.massive.oauth2_hpc.metrics.SigningStages;
+
+/**
+ * Records the time taken to decode and verify access tokens presented to the resource server
+ */
+public class TimedResourceServerTokenServices implements ResourceServerTokenServices {
+
+	private final ResourceServerTokenServices tokenServices;
+
+	/**
+	 * @param tokenServices the token services that verify the tokens
+	 */
+	public TimedResourceServerTokenServices(ResourceServerTokenServices tokenServices) {
+		this.tokenServices = tokenServices;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException, InvalidTokenException {
+		long start = System.nanoTime();
+		try {
+			return tokenServices.loadAuthentication(accessToken);
+		} finally {
+			SigningStages.TOKEN_VERIFICATION.observeSince(start);
+		}
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return tokenServices.readAccessToken(accessToken);
+	}
+}
@@ -1,5 +1,8 @@
 package au.org.massive.oauth2_hpc;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.mapdb.Serializer;
 import org.springframework.security.core.userdetails.UserDetails;
 
 import java.util.Map;
@@ -7,15 +10,42 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Stores and retrieves user details in a disk-based cache
- * to avoid hitting LDAP servers unnecessarily
+ * to avoid hitting LDAP servers unnecessarily.
+ * Recently used users are also held in a bounded in-memory cache in front of the disk cache,
+ * so lookups of active users don't touch the disk; the disk cache keeps entries across restarts.
+ * Users that could not be found are remembered in memory for a short time, so that clients
+ * retrying with an unknown user don't query LDAP on every request.
  */
 public class UserDetailsCache extends DiskCache {
-    private Map<String, UserDetails> userData;
+    private static UserDetailsCache instance;
     private final static Settings settings = Settings.getInstance();
+    private Map<String, CachedUserDetails> userData;
+    private final Cache<String, CachedUserDetails> memoryCache;
+    private final Cache<String, Boolean> unknownUsers;
 
-    public UserDetailsCache() {
-        userData = getCache("user-details",
-                new DiskCache.Expiry(settings.getCacheExpiryHours(), TimeUnit.HOURS));
+    private UserDetailsCache() {
+        // Entries cached with Java serialization before the compact format was introduced
+        dropCache("user-details");
+        // Entries carry their own format version, so the name doesn't change with the format
+        userData = getCache("user-details-v1",
+                // Expired users are kept for the grace period, for use while LDAP is unavailable
+                new DiskCache.Expiry(settings.getCacheExpiryHours() + settings.getCacheStaleGraceHours(), TimeUnit.HOURS),
+                Serializer.STRING, new UserDetailsSerializer());
+        memoryCache = CacheBuilder.newBuilder()
+                .maximumSize(settings.getUserCacheMemorySize())
+                .expireAfterWrite(settings.getUserCacheMemoryExpiryMinutes(), TimeUnit.MINUTES)
+                .build();
+        unknownUsers = CacheBuilder.newBuilder()
+                .maximumSize(settings.getUserCacheNegativeSize())
+                .expireAfterWrite(settings.getUserCacheNegativeExpirySeconds(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    public static synchronized UserDetailsCache getInstance() {
+        if (instance == null) {
+            instance = new UserDetailsCache();
+        }
+        return instance;
     }
 
     /**
@@ -24,10 +54,24 @@ public class UserDetailsCache extends DiskCache {
      * @return the UserDetails object or null if no such user
      */
     public UserDetails getUserDetails(String key) {
-        if (!userData.containsKey(key)) {
-            return null;
+        CachedUserDetails cachedUser = getCachedUserDetails(key);
+        return cachedUser == null ? null : cachedUser.getUserDetails();
+    }
+
+    /**
+     * Retrieves user details from the cache, with the time they were loaded
+     * @param key lookup key, e.g. email.
+     * @return the cached user or null if no such user
+     */
+    public CachedUserDetails getCachedUserDetails(String key) {
+        CachedUserDetails cachedUser = memoryCache.getIfPresent(key);
+        if (cachedUser == null) {
+            cachedUser = userData.get(key);
+            if (cachedUser != null) {
+                memoryCache.put(key, cachedUser);
+            }
         }
-        return userData.get(key);
+        return cachedUser;
     }
 
     /**
@@ -36,7 +80,53 @@ public class UserDetailsCache extends DiskCache {
      * @param userDetails the UserDetails object
      */
     public void saveUserDetails(String key, UserDetails userDetails) {
-        userData.put(key, userDetails);
+        CachedUserDetails cachedUser = new CachedUserDetails(userDetails, System.currentTimeMillis());
+        unknownUsers.invalidate(key);
+        memoryCache.put(key, cachedUser);
+        userData.put(key, cachedUser);
+        scheduleCommit();
+    }
+
+    /**
+     * @param key lookup key, e.g. email
+     * @return true if the user could not be found recently
+     */
+    public boolean isUnknownUser(String key) {
+        return unknownUsers.getIfPresent(key) != null;
+    }
+
+    /**
+     * Remembers that a user could not be found, removing the user if they were cached
+     * @param key lookup key, e.g. email
+     */
+    public void saveUnknownUser(String key) {
+        unknownUsers.put(key, Boolean.TRUE);
+        memoryCache.invalidate(key);
+        if (userData.remove(key) != null) {
+            scheduleCommit();
+        }
+    }
+
+    /**
+     * Removes a user from the cache, so that the next lookup queries LDAP. Also forgets all
+     * unknown users.
+     * @param key lookup key, e.g. email
+     */
+    public void removeUserDetails(String key) {
+        unknownUsers.invalidateAll();
+        memoryCache.invalidate(key);
+        if (userData.remove(key) != null) {
+            scheduleCommit();
+        }
+    }
+
+    /**
+     * Removes all users from the cache, including unknown users
+     */
+    public void clear() {
+        unknownUsers.invalidateAll();
+        memoryCache.invalidateAll();
+        userData.clear();
         commit();
     }
 
@@ -0,0 +1,153 @@
+package au.org.massive.oauth2_hpc;
+
+import org.mapdb.DataIO;
+import org.mapdb.Serializer;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores cached users in a compact binary form rather than with Java serialization, which
+ * writes class descriptors with every entry and ties the cache file to Spring's classes.
+ * <p>
+ * An entry is a format version byte, the time the user was loaded as a varint, a byte of account
+ * flags, the username, password and email as varint-length UTF-8 strings, then the authorities.
+ * Well-known authorities are stored as a single varint code; any other authority is stored as
+ * code 0 followed by its name. Users are always read back as {@link UserDetailsImpl}.
+ * <p>
+ * Version 1 entries, written before the load time was stored, are read with a load time of 0.
+ */
+public class UserDetailsSerializer extends Serializer<CachedUserDetails> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int VERSION_WITHOUT_LOAD_TIME = 1;
+    private static final int VERSION = 2;
+
+    private static final int ENABLED = 1;
+    private static final int ACCOUNT_NON_EXPIRED = 1 << 1;
+    private static final int CREDENTIALS_NON_EXPIRED = 1 << 2;
+    private static final int ACCOUNT_NON_LOCKED = 1 << 3;
+
+    private static final int OTHER_AUTHORITY = 0;
+
+    /**
+     * Authorities stored as codes; the code is the index plus one. Only append to this list,
+     * as the codes are persisted in the cache file.
+     */
+    private static final GrantedAuthority[] KNOWN_AUTHORITIES = {
+            new SimpleGrantedAuthority("ROLE_USER"),
+            new SimpleGrantedAuthority("ROLE_CLIENT")
+    };
+
+    @Override
+    public void serialize(DataOutput out, CachedUserDetails cachedUser) throws IOException {
+        UserDetails user = cachedUser.getUserDetails();
+        out.writeByte(VERSION);
+        DataIO.packLong(out, cachedUser.getLoadedAt());
+        int flags = 0;
+        if (user.isEnabled()) {
+            flags |= ENABLED;
+        }
+        if (user.isAccountNonExpired()) {
+            flags |= ACCOUNT_NON_EXPIRED;
+        }
+        if (user.isCredentialsNonExpired()) {
+            flags |= CREDENTIALS_NON_EXPIRED;
+        }
+        if (user.isAccountNonLocked()) {
+            flags |= ACCOUNT_NON_LOCKED;
+        }
+        out.writeByte(flags);
+        writeString(out, user.getUsername());
+        writeString(out, user.getPassword());
+        writeString(out, user instanceof UserDetailsImpl ? ((UserDetailsImpl) user).getEmail() : null);
+
+        DataIO.packInt(out, user.getAuthorities().size());
+        for (GrantedAuthority authority : user.getAuthorities()) {
+            int code = codeOf(authority.getAuthority());
+            DataIO.packInt(out, code);
+            if (code == OTHER_AUTHORITY) {
+                writeString(out, authority.getAuthority());
+            }
+        }
+    }
+
+    @Override
+    public CachedUserDetails deserialize(DataInput in, int available) throws IOException {
+        int version = in.readUnsignedByte();
+        long loadedAt;
+        if (version == VERSION) {
+            loadedAt = DataIO.unpackLong(in);
+        } else if (version == VERSION_WITHOUT_LOAD_TIME) {
+            loadedAt = 0;
+        } else {
+            throw new IOException("Unsupported cached user format version: " + version);
+        }
+        int flags = in.readUnsignedByte();
+        String username = readString(in);
+        String password = readString(in);
+        String email = readString(in);
+
+        int authorityCount = DataIO.unpackInt(in);
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(authorityCount);
+        for (int i = 0; i < authorityCount; i++) {
+            int code = DataIO.unpackInt(in);
+            if (code == OTHER_AUTHORITY) {
+                authorities.add(new SimpleGrantedAuthority(readString(in)));
+            } else if (code <= KNOWN_AUTHORITIES.length) {
+                authorities.add(KNOWN_AUTHORITIES[code - 1]);
+            } else {
+                throw new IOException("Unknown authority code: " + code);
+            }
+        }
+
+        // User doesn't accept a null password, which it is once credentials have been erased
+        UserDetails user = new UserDetailsImpl(username, password == null ? "" : password, email,
+                (flags & ENABLED) != 0,
+                (flags & ACCOUNT_NON_EXPIRED) != 0,
+                (flags & CREDENTIALS_NON_EXPIRED) != 0,
+                (flags & ACCOUNT_NON_LOCKED) != 0,
+                authorities);
+        return new CachedUserDetails(user, loadedAt);
+    }
+
+    private static int codeOf(String authority) {
+        for (int i = 0; i < KNOWN_AUTHORITIES.length; i++) {
+            if (KNOWN_AUTHORITIES[i].getAuthority().equals(authority)) {
+                return i + 1;
+            }
+        }
+        return OTHER_AUTHORITY;
+    }
+
+    /**
+     * Writes the UTF-8 length plus one, so that 0 can mark a null string, followed by the bytes
+     */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            DataIO.packInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        DataIO.packInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = DataIO.unpackInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,48 @@
+package au.org.massive.oauth2_hpc.events;
+
+import java.security.PublicKey;
+
+/**
+ * Records events for individual operations, such as JDK Flight Recorder events, so that a
+ * recording shows which requests were slow and why. An event is begun before the operation and
+ * committed after it; when events are not being recorded, the events returned do nothing.
+ * @see Events#sink()
+ */
+public interface EventSink {
+
+	/**
+	 * Signing of a certificate
+	 */
+	interface SigningEvent {
+		/**
+		 * @param user the user the certificate is for
+		 * @param key the key that was signed
+		 * @param certificate the certificate
+		 */
+		void commit(String user, PublicKey key, String certificate);
+	}
+
+	/**
+	 * An LDAP user search
+	 */
+	interface LdapSearchEvent {
+		/**
+		 * @param filter the search filter
+		 * @param resultCount number of results read, or -1 if the search failed
+		 */
+		void commit(String filter, int resultCount);
+	}
+
+	/**
+	 * A commit of the disk cache
+	 */
+	interface CacheCommitEvent {
+		void commit();
+	}
+
+	SigningEvent beginSigning();
+
+	LdapSearchEvent beginLdapSearch();
+
+	CacheCommitEvent beginCacheCommit();
+}
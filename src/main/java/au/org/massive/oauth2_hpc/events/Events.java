@@ -0,0 +1,44 @@
+package au.org.massive.oauth2_hpc.events;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Provides the event sink. When the server is built with JDK 11 or later, the
+ * <pre>jfr</pre> build profile adds JDK Flight Recorder events; they are used if the JVM
+ * running the server supports Flight Recorder. Otherwise events are discarded.
+ * <p>
+ * Flight Recorder events cost next to nothing when no recording is running, so they are always
+ * enabled. To record them, start the server with e.g.
+ * <pre>-XX:StartFlightRecording=duration=10m,filename=ssh-authz.jfr</pre> and open the
+ * recording in JDK Mission Control; the events are in the SSH-AuthZ category.
+ */
+public final class Events {
+	private static final Logger log = Logger.getLogger(Events.class.getName());
+
+	private static final String FLIGHT_RECORDER_SINK = "au.org.massive.oauth2_hpc.events.jfr.FlightRecorderEventSink";
+
+	private static final EventSink sink = load();
+
+	private Events() {
+
+	}
+
+	/**
+	 * @return the event sink
+	 */
+	public static EventSink sink() {
+		return sink;
+	}
+
+	private static EventSink load() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			EventSink flightRecorderSink = (EventSink) Class.forName(FLIGHT_RECORDER_SINK).getDeclaredConstructor().newInstance();
+			log.info("Flight Recorder events enabled");
+			return flightRecorderSink;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			log.info("Flight Recorder events are not available in this build or JVM");
+			return new NoOpEventSink();
+		}
+	}
+}
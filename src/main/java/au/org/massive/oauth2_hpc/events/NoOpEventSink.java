@@ -0,0 +1,40 @@
+package au.org.massive.oauth2_hpc.events;
+
+import java.security.PublicKey;
+
+/**
+ * Discards all events; used when Flight Recorder is not available, and for events that are not
+ * being recorded
+ */
+public class NoOpEventSink implements EventSink, EventSink.SigningEvent, EventSink.LdapSearchEvent, EventSink.CacheCommitEvent {
+
+	@Override
+	public SigningEvent beginSigning() {
+		return this;
+	}
+
+	@Override
+	public LdapSearchEvent beginLdapSearch() {
+		return this;
+	}
+
+	@Override
+	public CacheCommitEvent beginCacheCommit() {
+		return this;
+	}
+
+	@Override
+	public void commit(String user, PublicKey key, String certificate) {
+
+	}
+
+	@Override
+	public void commit(String filter, int resultCount) {
+
+	}
+
+	@Override
+	public void commit() {
+
+	}
+}
@@ -0,0 +1,31 @@
+package au.org.massive.oauth2_hpc.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, such as the number of cache hits
+ */
+public class Counter implements Metrics.Metric {
+	private final LongAdder count = new LongAdder();
+
+	Counter() {
+
+	}
+
+	public void increment() {
+		count.increment();
+	}
+
+	public long get() {
+		return count.sum();
+	}
+
+	@Override
+	public void write(String name, String labels, StringBuilder out) {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(count.sum()).append('\n');
+	}
+}
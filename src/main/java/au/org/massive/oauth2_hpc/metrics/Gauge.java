@@ -0,0 +1,29 @@
+package au.org.massive.oauth2_hpc.metrics;
+
+/**
+ * A value that can go up and down, such as whether a circuit breaker is open
+ */
+public class Gauge implements Metrics.Metric {
+	private volatile double value;
+
+	Gauge() {
+
+	}
+
+	public void set(double value) {
+		this.value = value;
+	}
+
+	public double get() {
+		return value;
+	}
+
+	@Override
+	public void write(String name, String labels, StringBuilder out) {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,133 @@
+package au.org.massive.oauth2_hpc.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with fixed buckets from 50us to 10s. Recording a duration is a short
+ * scan of the bucket bounds and two uncontended adds, so it is cheap enough for every request.
+ * The buckets are exported in the Prometheus histogram format, from which percentiles can be
+ * estimated with histogram_quantile().
+ */
+public class Histogram implements Metrics.Metric {
+	private static final long[] BUCKET_BOUNDS_NANOS = {
+			TimeUnit.MICROSECONDS.toNanos(50),
+			TimeUnit.MICROSECONDS.toNanos(100),
+			TimeUnit.MICROSECONDS.toNanos(250),
+			TimeUnit.MICROSECONDS.toNanos(500),
+			TimeUnit.MILLISECONDS.toNanos(1),
+			TimeUnit.MICROSECONDS.toNanos(2500),
+			TimeUnit.MILLISECONDS.toNanos(5),
+			TimeUnit.MILLISECONDS.toNanos(10),
+			TimeUnit.MILLISECONDS.toNanos(25),
+			TimeUnit.MILLISECONDS.toNanos(50),
+			TimeUnit.MILLISECONDS.toNanos(100),
+			TimeUnit.MILLISECONDS.toNanos(250),
+			TimeUnit.MILLISECONDS.toNanos(500),
+			TimeUnit.SECONDS.toNanos(1),
+			TimeUnit.MILLISECONDS.toNanos(2500),
+			TimeUnit.SECONDS.toNanos(5),
+			TimeUnit.SECONDS.toNanos(10)
+	};
+
+	private static final String[] BUCKET_LABELS = new String[BUCKET_BOUNDS_NANOS.length];
+	static {
+		for (int i = 0; i < BUCKET_BOUNDS_NANOS.length; i++) {
+			BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKET_BOUNDS_NANOS[i], 9).stripTrailingZeros().toPlainString();
+		}
+	}
+
+	/**
+	 * Count of durations in each bucket, not cumulative; the last is the +Inf bucket
+	 */
+	private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+	private final LongAdder sumNanos = new LongAdder();
+
+	/**
+	 * Creates a histogram that is not registered, and so not exported; exported histograms are
+	 * created with {@link Metrics#histogram(String, String, String...)}
+	 */
+	public Histogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a duration
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void observeNanos(long nanos) {
+		int i = 0;
+		while (i < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * Records the time elapsed since a start time
+	 * @param startNanos the start time, from {@link System#nanoTime()}
+	 */
+	public void observeSince(long startNanos) {
+		observeNanos(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates a quantile of the recorded durations, interpolating linearly within the bucket it
+	 * falls in, as histogram_quantile() does
+	 * @param quantile the quantile, from 0 to 1, e.g. 0.95
+	 * @return the estimated duration in nanoseconds, the largest bucket bound if the quantile falls
+	 * beyond it, or -1 if nothing has been recorded
+	 */
+	public long quantileNanos(double quantile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return -1;
+		}
+		double rank = quantile * total;
+		long cumulative = 0;
+		for (int i = 0; i < BUCKET_BOUNDS_NANOS.length; i++) {
+			if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+				long lower = (i == 0) ? 0 : BUCKET_BOUNDS_NANOS[i - 1];
+				long upper = BUCKET_BOUNDS_NANOS[i];
+				return lower + (long) ((upper - lower) * ((rank - cumulative) / counts[i]));
+			}
+			cumulative += counts[i];
+		}
+		return BUCKET_BOUNDS_NANOS[BUCKET_BOUNDS_NANOS.length - 1];
+	}
+
+	@Override
+	public void write(String name, String labels, StringBuilder out) {
+		String separator = labels.isEmpty() ? "" : ",";
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			count += buckets[i].sum();
+			String bound = (i < BUCKET_LABELS.length) ? BUCKET_LABELS[i] : "+Inf";
+			out.append(name).append("_bucket{").append(labels).append(separator)
+					.append("le=\"").append(bound).append("\"} ").append(count).append('\n');
+		}
+		String labelSet = labels.isEmpty() ? "" : "{"+labels+"}";
+		out.append(name).append("_sum").append(labelSet).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+		out.append(name).append("_count").append(labelSet).append(' ').append(count).append('\n');
+	}
+}
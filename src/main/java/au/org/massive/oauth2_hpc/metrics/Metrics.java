@@ -0,0 +1,157 @@
+package au.org.massive.oauth2_hpc.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the server's metrics, exported in the Prometheus text format. Metrics are
+ * registered by name and an optional set of labels; registering the same name and labels again
+ * returns the existing metric, so callers can hold metrics in static fields.
+ * <pre>
+ * private static final Histogram parseTime = Metrics.getInstance().histogram(
+ *         "ssh_authz_signing_stage_seconds", "Time spent in each stage of a signing request", "stage", "request_parse");
+ * </pre>
+ */
+public class Metrics {
+
+	private static final Metrics instance = new Metrics();
+
+	private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	/**
+	 * A metric that can write its samples
+	 */
+	interface Metric {
+		/**
+		 * Writes the samples of the metric in the Prometheus text format
+		 * @param name the metric name
+		 * @param labels the formatted labels, without braces, or an empty string
+		 * @param out the output
+		 */
+		void write(String name, String labels, StringBuilder out);
+	}
+
+	/**
+	 * Metrics of the same name and type, with different labels
+	 */
+	private static final class Family {
+		private final String name;
+		private final String help;
+		private final String type;
+		private final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+		private Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private Metrics() {
+
+	}
+
+	public static Metrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the histogram with the given name and labels, registering it if necessary
+	 * @param name the metric name, e.g. ssh_authz_ldap_lookup_seconds
+	 * @param help a description of the metric
+	 * @param labels label names and values, alternating
+	 * @return the histogram
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) register(name, help, "histogram", labels, new Histogram());
+	}
+
+	/**
+	 * Returns the counter with the given name and labels, registering it if necessary
+	 * @param name the metric name, e.g. ssh_authz_user_cache_requests_total
+	 * @param help a description of the metric
+	 * @param labels label names and values, alternating
+	 * @return the counter
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) register(name, help, "counter", labels, new Counter());
+	}
+
+	/**
+	 * Returns the gauge with the given name and labels, registering it if necessary
+	 * @param name the metric name, e.g. ssh_authz_circuit_breaker_state
+	 * @param help a description of the metric
+	 * @param labels label names and values, alternating
+	 * @return the gauge
+	 */
+	public Gauge gauge(String name, String help, String... labels) {
+		return (Gauge) register(name, help, "gauge", labels, new Gauge());
+	}
+
+	private Metric register(String name, String help, String type, String[] labels, Metric metric) {
+		Metric registered = getFamily(name, help, type).metrics.putIfAbsent(formatLabels(labels), metric);
+		return (registered != null) ? registered : metric;
+	}
+
+	private Family getFamily(String name, String help, String type) {
+		Family family = families.get(name);
+		if (family == null) {
+			Family created = new Family(name, help, type);
+			family = families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("Metric "+name+" is already registered as a "+family.type);
+		}
+		return family;
+	}
+
+	/**
+	 * @param labels label names and values, alternating
+	 * @return the labels in the Prometheus text format, without braces
+	 */
+	private static String formatLabels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be given as name and value pairs");
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == '\\' || c == '"') {
+					sb.append('\\').append(c);
+				} else if (c == '\n') {
+					sb.append("\\n");
+				} else {
+					sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text exposition format, version 0.0.4
+	 */
+	public String toPrometheusText() {
+		StringBuilder out = new StringBuilder();
+		for (Family family : families.values()) {
+			out.append("# HELP ").append(family.name).append(' ')
+					.append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Metric> entry : family.metrics.entrySet()) {
+				entry.getValue().write(family.name, entry.getKey(), out);
+			}
+		}
+		return out.toString();
+	}
+}
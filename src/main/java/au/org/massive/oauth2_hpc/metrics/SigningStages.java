@@ -0,0 +1,43 @@
+package au.org.massive.oauth2_hpc.metrics;
+
+/**
+ * Histograms of the time spent in each stage of a signing request, exported as
+ * ssh_authz_signing_stage_seconds with a stage label
+ */
+public final class SigningStages {
+	private static final String NAME = "ssh_authz_signing_stage_seconds";
+	private static final String HELP = "Time spent in each stage of a signing request";
+
+	/**
+	 * Decoding and verifying the JWT access token
+	 */
+	public static final Histogram TOKEN_VERIFICATION = stage("token_verification");
+
+	/**
+	 * Reading and parsing the json request body
+	 */
+	public static final Histogram REQUEST_PARSE = stage("request_parse");
+
+	/**
+	 * Decoding the public key being signed
+	 */
+	public static final Histogram KEY_DECODE = stage("key_decode");
+
+	/**
+	 * The CA signature over the certificate data
+	 */
+	public static final Histogram SIGNATURE = stage("signature");
+
+	/**
+	 * Serialising the json response
+	 */
+	public static final Histogram RESPONSE_SERIALIZATION = stage("response_serialization");
+
+	private SigningStages() {
+
+	}
+
+	private static Histogram stage(String stage) {
+		return Metrics.getInstance().histogram(NAME, HELP, "stage", stage);
+	}
+}
@@ -0,0 +1,246 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the SSH certificate authority keys in memory. The key files are decoded once, and
+ * the decoded keys are swapped atomically if the files are changed on disk, so signing
+ * requests never need to read or parse the key files.
+ */
+public class CAKeyHolder {
+	private static final Logger log = Logger.getLogger(CAKeyHolder.class.getName());
+
+	private final File publicKeyFile;
+	private final File privateKeyFile;
+	private final String passphrase;
+	private final SSHSignatureAlgorithm signatureAlgorithm;
+	private final AtomicReference<CAKeys> keys;
+	private final List<ReloadListener> reloadListeners = new CopyOnWriteArrayList<ReloadListener>();
+	private Thread watcherThread;
+
+	/**
+	 * Prepares for reloaded keys before they replace the current keys, so that the first
+	 * signing requests with the new keys don't have to
+	 */
+	public interface ReloadListener {
+		/**
+		 * Called on the reloading thread, before the keys are published
+		 * @param keys the reloaded keys
+		 * @throws RuntimeException to reject the keys; the current keys are kept
+		 */
+		void keysLoaded(CAKeys keys);
+	}
+
+	/**
+	 * An immutable, matching pair of CA keys
+	 */
+	public static final class CAKeys {
+		private final PublicKey publicKey;
+		private final PrivateKey privateKey;
+		private final SSHSignatureAlgorithm signatureAlgorithm;
+
+		private CAKeys(PublicKey publicKey, PrivateKey privateKey, SSHSignatureAlgorithm signatureAlgorithm) {
+			this.publicKey = publicKey;
+			this.privateKey = privateKey;
+			this.signatureAlgorithm = signatureAlgorithm;
+		}
+
+		public PublicKey getPublicKey() {
+			return publicKey;
+		}
+
+		public PrivateKey getPrivateKey() {
+			return privateKey;
+		}
+
+		public SSHSignatureAlgorithm getSignatureAlgorithm() {
+			return signatureAlgorithm;
+		}
+	}
+
+	/**
+	 * Loads the CA keys. If the private key is encrypted and the passphrase is missing or incorrect,
+	 * the passphrase is requested on the console.
+	 * @param publicKeyFile CA public key in ssh-keygen format
+	 * @param privateKeyFile CA private key in PEM or OpenSSH format; RSA, Ed25519 and ECDSA keys are supported
+	 * @param passphrase private key passphrase - can be null if not required
+	 */
+	public CAKeyHolder(File publicKeyFile, File privateKeyFile, String passphrase) {
+		this(publicKeyFile, privateKeyFile, passphrase, null);
+	}
+
+	/**
+	 * Loads the CA keys. If the private key is encrypted and the passphrase is missing or incorrect,
+	 * the passphrase is requested on the console.
+	 * @param publicKeyFile CA public key in ssh-keygen format
+	 * @param privateKeyFile CA private key in PEM or OpenSSH format; RSA, Ed25519 and ECDSA keys are supported
+	 * @param passphrase private key passphrase - can be null if not required
+	 * @param signatureAlgorithm algorithm used to sign certificates - can be null to use the default for the key type
+	 */
+	public CAKeyHolder(File publicKeyFile, File privateKeyFile, String passphrase, SSHSignatureAlgorithm signatureAlgorithm) {
+		this.publicKeyFile = publicKeyFile.getAbsoluteFile();
+		this.privateKeyFile = privateKeyFile.getAbsoluteFile();
+		this.passphrase = passphrase;
+		this.signatureAlgorithm = signatureAlgorithm;
+		try {
+			this.keys = new AtomicReference<CAKeys>(load(true));
+		} catch (InvalidKeyException | IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Holds a key pair that is already in memory. The keys are never reloaded, which makes this
+	 * constructor suitable for benchmarks and tests.
+	 * @param keyPair CA key pair
+	 * @param signatureAlgorithm algorithm used to sign certificates - can be null to use the default for the key type
+	 */
+	public CAKeyHolder(KeyPair keyPair, SSHSignatureAlgorithm signatureAlgorithm) {
+		this.publicKeyFile = null;
+		this.privateKeyFile = null;
+		this.passphrase = null;
+		this.signatureAlgorithm = signatureAlgorithm;
+		this.keys = new AtomicReference<CAKeys>(new CAKeys(keyPair.getPublic(), keyPair.getPrivate(),
+				selectSignatureAlgorithm(keyPair.getPublic())));
+	}
+
+	/**
+	 * @return the current CA keys; never blocks on file I/O
+	 */
+	public CAKeys getKeys() {
+		return keys.get();
+	}
+
+	/**
+	 * @param listener notified of reloaded keys before they replace the current keys
+	 */
+	public void addReloadListener(ReloadListener listener) {
+		reloadListeners.add(listener);
+	}
+
+	/**
+	 * Reads and decodes the key files, replacing the current keys if successful. Reloading never
+	 * prompts for a passphrase; if the new keys can't be decoded, or a {@link ReloadListener}
+	 * rejects them, the current keys are kept.
+	 * @return true if the keys were replaced
+	 */
+	public synchronized boolean reload() {
+		if (publicKeyFile == null) {
+			return false;
+		}
+		try {
+			CAKeys newKeys = load(false);
+			for (ReloadListener listener : reloadListeners) {
+				listener.keysLoaded(newKeys);
+			}
+			keys.set(newKeys);
+			log.info("Reloaded SSH CA keys from "+publicKeyFile+" and "+privateKeyFile);
+			return true;
+		} catch (InvalidKeyException | IOException | RuntimeException e) {
+			log.error("Could not reload SSH CA keys; continuing to use the previously loaded keys", e);
+			return false;
+		}
+	}
+
+	private CAKeys load(boolean promptForPassphrase) throws InvalidKeyException, IOException {
+		PublicKey publicKey = SSHPublicKeyCodec.decodeKeyFromSSHBase64Format(publicKeyFile);
+		byte[] privateKeyData = KeyCodec.readFile(privateKeyFile);
+		KeyPair keyPair;
+		if (OpenSSHPrivateKeyCodec.isOpenSSHFormat(privateKeyData)) {
+			keyPair = OpenSSHPrivateKeyCodec.decodeKeyPair(privateKeyData);
+		} else {
+			keyPair = KeyCodec.decodePEMKeyPair(privateKeyData, passphrase, promptForPassphrase);
+		}
+		if (!Arrays.equals(SSHPublicKeyCodec.encodePublicKeyBlob(publicKey),
+				SSHPublicKeyCodec.encodePublicKeyBlob(keyPair.getPublic()))) {
+			throw new InvalidKeyException("CA public key does not match the CA private key");
+		}
+		return new CAKeys(publicKey, keyPair.getPrivate(), selectSignatureAlgorithm(publicKey));
+	}
+
+	private SSHSignatureAlgorithm selectSignatureAlgorithm(PublicKey publicKey) {
+		if (signatureAlgorithm == null) {
+			return SSHSignatureAlgorithm.forKey(publicKey);
+		} else if (!signatureAlgorithm.isCompatibleWith(publicKey)) {
+			throw new IllegalArgumentException("Signature algorithm "+signatureAlgorithm.getName()
+					+" can't be used with a "+publicKey.getAlgorithm()+" CA key");
+		}
+		return signatureAlgorithm;
+	}
+
+	/**
+	 * Starts a daemon thread that reloads the keys whenever either key file is created or modified.
+	 * Calling this more than once has no effect.
+	 */
+	public synchronized void watch() {
+		if (watcherThread != null || publicKeyFile == null) {
+			return;
+		}
+
+		final WatchService watchService;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			Set<Path> directories = new HashSet<Path>();
+			directories.add(publicKeyFile.toPath().getParent());
+			directories.add(privateKeyFile.toPath().getParent());
+			for (Path dir : directories) {
+				dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		} catch (IOException e) {
+			log.warn("Could not watch the SSH CA key files for changes; keys will not be reloaded", e);
+			return;
+		}
+
+		watcherThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = watchService.take();
+						boolean changed = false;
+						Path dir = (Path) key.watchable();
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+								changed = true;
+								continue;
+							}
+							Path file = dir.resolve((Path) event.context());
+							if (file.equals(publicKeyFile.toPath()) || file.equals(privateKeyFile.toPath())) {
+								changed = true;
+							}
+						}
+						key.reset();
+						if (changed) {
+							reload();
+						}
+					}
+				} catch (InterruptedException | ClosedWatchServiceException e) {
+					// Stop watching
+				}
+			}
+		}, "ssh-ca-key-watcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+		log.info("Watching SSH CA key files for changes");
+	}
+}
@@ -0,0 +1,242 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import au.org.massive.oauth2_hpc.metrics.SigningStages;
+import au.org.massive.oauth2_hpc.ssh.CAKeyHolder.CAKeys;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateTemplate.Policy;
+
+/**
+ * Signs certificate data with the CA private key. Each thread keeps its own {@link Signature}
+ * already initialised with the CA private key, so the provider lookup and key initialisation
+ * happen once per thread rather than once per certificate. Signatures are re-initialised only
+ * when the {@link CAKeyHolder} hands out new keys. The signer also caches the
+ * {@link SSHCertificateTemplate}s for the current keys.
+ * <p>
+ * The fastest security provider for the CA's signature algorithm is chosen by timing test
+ * signatures when the signer is created, and again on the reloading thread whenever the
+ * {@link CAKeyHolder} reloads the keys, before the new keys are handed out.
+ */
+public class CASigner {
+	private static final Logger log = Logger.getLogger(CASigner.class.getName());
+
+	/**
+	 * A single BouncyCastle instance; constructing the provider is expensive
+	 */
+	static final Provider BOUNCY_CASTLE_PROVIDER = new BouncyCastleProvider();
+
+	private static final int BENCHMARK_WARMUP_ROUNDS = 5;
+	private static final int BENCHMARK_ROUNDS = 20;
+
+	/**
+	 * Upper bound on the number of cached certificate templates; certificates under further
+	 * policies are signed from a template built for the request
+	 */
+	private static final int MAX_TEMPLATES = 64;
+
+	private final CAKeyHolder keyHolder;
+	private volatile TemplateCache templateCache;
+
+	/**
+	 * The fastest provider found for each JCA signature algorithm
+	 */
+	private final ConcurrentMap<String, Provider> providers = new ConcurrentHashMap<String, Provider>();
+
+	private final ThreadLocal<BoundSignature> signatures = new ThreadLocal<BoundSignature>();
+
+	/**
+	 * Certificate templates built for a particular set of CA keys
+	 */
+	private static final class TemplateCache {
+		private final CAKeys keys;
+		private final ConcurrentMap<Policy, SSHCertificateTemplate> templates = new ConcurrentHashMap<Policy, SSHCertificateTemplate>();
+
+		private TemplateCache(CAKeys keys) {
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * A signature engine initialised with a particular CA private key
+	 */
+	private static final class BoundSignature {
+		private final CAKeys keys;
+		private final Signature signature;
+
+		private BoundSignature(CAKeys keys, Signature signature) {
+			this.keys = keys;
+			this.signature = signature;
+		}
+	}
+
+	/**
+	 * Creates a signer and selects the fastest provider for the current CA keys
+	 * @param keyHolder source of the CA keys
+	 */
+	public CASigner(CAKeyHolder keyHolder) {
+		this.keyHolder = keyHolder;
+		// Registered first so that keys reloaded meanwhile are not missed
+		keyHolder.addReloadListener(new CAKeyHolder.ReloadListener() {
+			@Override
+			public void keysLoaded(CAKeys keys) {
+				selectProvider(keys);
+			}
+		});
+		selectProvider(keyHolder.getKeys());
+	}
+
+	/**
+	 * @return the current CA keys. Pass the same keys to {@link #sign(CAKeys, byte[])} so that the
+	 * signature matches the CA public key written into the certificate.
+	 */
+	public CAKeys getKeys() {
+		return keyHolder.getKeys();
+	}
+
+	/**
+	 * Returns the certificate template for the policy of the given options, building it on first use.
+	 * Templates are discarded when the CA keys change.
+	 * @param keys CA keys, as returned by {@link #getKeys()}
+	 * @param options certificate signing options
+	 * @return the template
+	 * @throws InvalidKeyException thrown if the CA key or the key being signed is of an unsupported type
+	 */
+	public SSHCertificateTemplate getTemplate(CAKeys keys, SSHCertificateOptions options) throws InvalidKeyException {
+		TemplateCache cache = templateCache;
+		if (cache == null || cache.keys != keys) {
+			cache = new TemplateCache(keys);
+			templateCache = cache;
+		}
+		Policy policy = Policy.of(options);
+		SSHCertificateTemplate template = cache.templates.get(policy);
+		if (template == null) {
+			template = new SSHCertificateTemplate(keys.getPublicKey(), keys.getSignatureAlgorithm(), policy);
+			if (cache.templates.size() < MAX_TEMPLATES) {
+				cache.templates.putIfAbsent(policy, template);
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * Signs data with the private key of the given CA keys
+	 * @param keys CA keys, as returned by {@link #getKeys()}
+	 * @param data data to sign
+	 * @return the raw signature
+	 * @throws InvalidKeyException thrown if the CA private key is invalid
+	 * @throws SignatureException thrown if a signature could not be generated
+	 */
+	public byte[] sign(CAKeys keys, byte[] data) throws InvalidKeyException, SignatureException {
+		return sign(keys, data, 0, data.length);
+	}
+
+	/**
+	 * Signs part of an array with the private key of the given CA keys
+	 * @param keys CA keys, as returned by {@link #getKeys()}
+	 * @param data array holding the data to sign
+	 * @param offset start of the data to sign
+	 * @param length number of bytes to sign
+	 * @return the raw signature
+	 * @throws InvalidKeyException thrown if the CA private key is invalid
+	 * @throws SignatureException thrown if a signature could not be generated
+	 */
+	public byte[] sign(CAKeys keys, byte[] data, int offset, int length) throws InvalidKeyException, SignatureException {
+		BoundSignature bound = signatures.get();
+		if (bound == null || bound.keys != keys) {
+			bound = new BoundSignature(keys, newSignature(getProvider(keys), keys));
+			signatures.set(bound);
+		}
+		long start = System.nanoTime();
+		bound.signature.update(data, offset, length);
+		byte[] signature = bound.signature.sign();
+		SigningStages.SIGNATURE.observeSince(start);
+		return signature;
+	}
+
+	private static Signature newSignature(Provider provider, CAKeys keys) throws InvalidKeyException {
+		try {
+			Signature signature = Signature.getInstance(keys.getSignatureAlgorithm().getJcaAlgorithm(), provider);
+			signature.initSign(keys.getPrivateKey());
+			return signature;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Times the providers with the given keys and uses the fastest for their algorithm. Signing
+	 * threads keep using the previous provider for the algorithm until this returns.
+	 * @param keys the keys used for the test signatures
+	 */
+	private void selectProvider(CAKeys keys) {
+		providers.put(keys.getSignatureAlgorithm().getJcaAlgorithm(), selectFastestProvider(keys));
+	}
+
+	private Provider getProvider(CAKeys keys) {
+		Provider provider = providers.get(keys.getSignatureAlgorithm().getJcaAlgorithm());
+		if (provider == null) {
+			// Every key handed out by the key holder has been through selectProvider
+			throw new IllegalStateException("No provider selected for "+keys.getSignatureAlgorithm().getJcaAlgorithm());
+		}
+		return provider;
+	}
+
+	/**
+	 * Times a few test signatures with each provider that supports the algorithm and returns the fastest
+	 * @param keys the keys used for the test signatures
+	 * @return the fastest provider
+	 */
+	private static Provider selectFastestProvider(CAKeys keys) {
+		String algorithm = keys.getSignatureAlgorithm().getJcaAlgorithm();
+		List<Provider> candidates = new ArrayList<Provider>();
+		Provider[] installed = Security.getProviders("Signature."+algorithm);
+		if (installed != null) {
+			candidates.addAll(Arrays.asList(installed));
+		}
+		candidates.add(BOUNCY_CASTLE_PROVIDER);
+
+		byte[] testData = new byte[512];
+		Provider fastest = null;
+		long fastestTime = Long.MAX_VALUE;
+		for (Provider provider : candidates) {
+			try {
+				Signature signature = newSignature(provider, keys);
+				for (int i = 0; i < BENCHMARK_WARMUP_ROUNDS; i++) {
+					signature.update(testData);
+					signature.sign();
+				}
+				long start = System.nanoTime();
+				for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+					signature.update(testData);
+					signature.sign();
+				}
+				long elapsed = System.nanoTime() - start;
+				log.info(algorithm+" signature with provider "+provider.getName()+": "+(elapsed / BENCHMARK_ROUNDS / 1000)+"us");
+				if (elapsed < fastestTime) {
+					fastest = provider;
+					fastestTime = elapsed;
+				}
+			} catch (InvalidKeyException | SignatureException | RuntimeException e) {
+				log.info("Provider "+provider.getName()+" cannot sign with "+algorithm+" using the CA key");
+			}
+		}
+		if (fastest == null) {
+			throw new RuntimeException("No security provider can sign with "+algorithm+" using the CA key");
+		}
+		log.info("Using provider "+fastest.getName()+" for "+algorithm+" certificate signatures");
+		return fastest;
+	}
+}
@@ -0,0 +1,186 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.Arrays;
+
+/**
+ * ecdsa-sha2-nistp256/384/521 keys (RFC 5656): the curve name followed by the public point
+ * in uncompressed form
+ */
+public class ECDSAKeyType extends SSHKeyType {
+	public static final ECDSAKeyType NISTP256 = new ECDSAKeyType("nistp256", "secp256r1", 256);
+	public static final ECDSAKeyType NISTP384 = new ECDSAKeyType("nistp384", "secp384r1", 384);
+	public static final ECDSAKeyType NISTP521 = new ECDSAKeyType("nistp521", "secp521r1", 521);
+
+	private static final ECDSAKeyType[] CURVES = { NISTP256, NISTP384, NISTP521 };
+
+	private final String curveName;
+	private final String jcaCurveName;
+	private final int fieldSize;
+	private volatile ECParameterSpec parameters;
+
+	private ECDSAKeyType(String curveName, String jcaCurveName, int fieldSize) {
+		super("ecdsa-sha2-"+curveName);
+		this.curveName = curveName;
+		this.jcaCurveName = jcaCurveName;
+		this.fieldSize = fieldSize;
+	}
+
+	/**
+	 * @param key an elliptic curve public or private key
+	 * @return the key type for the curve of the key, or null if the curve is not supported
+	 */
+	public static ECDSAKeyType forKey(Key key) {
+		if (key instanceof ECKey) {
+			int keyFieldSize = ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+			for (ECDSAKeyType curve : CURVES) {
+				if (curve.fieldSize == keyFieldSize) {
+					return curve;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param curveName SSH curve name, e.g. nistp256
+	 * @return the key type for the curve, or null if the curve is not supported
+	 */
+	public static ECDSAKeyType forCurveName(String curveName) {
+		for (ECDSAKeyType curve : CURVES) {
+			if (curve.curveName.equals(curveName)) {
+				return curve;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the SSH curve name, e.g. nistp256
+	 */
+	public String getCurveName() {
+		return curveName;
+	}
+
+	private ECParameterSpec getParameters() {
+		if (parameters == null) {
+			try {
+				AlgorithmParameters algorithmParameters = AlgorithmParameters.getInstance("EC");
+				algorithmParameters.init(new ECGenParameterSpec(jcaCurveName));
+				parameters = algorithmParameters.getParameterSpec(ECParameterSpec.class);
+			} catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return parameters;
+	}
+
+	@Override
+	public boolean supports(PublicKey key) {
+		return key instanceof ECPublicKey && forKey(key) == this;
+	}
+
+	@Override
+	public byte[][] encodePublicKey(PublicKey key) throws InvalidKeyException {
+		if (!supports(key)) {
+			throw new InvalidKeyException("Not an "+getName()+" public key");
+		}
+		return new byte[][] {
+				curveName.getBytes(StandardCharsets.US_ASCII),
+				encodePoint(((ECPublicKey) key).getW())
+		};
+	}
+
+	@Override
+	public PublicKey decodePublicKey(SSHWireReader in) throws InvalidKeyException {
+		if (!in.readString().equals(curveName)) {
+			throw new InvalidKeyException("Curve does not match key type "+getName());
+		}
+		return fromPoint(in.readBytes());
+	}
+
+	/**
+	 * @param encodedPoint public point in uncompressed form
+	 * @return the public key
+	 * @throws InvalidKeyException if the point is malformed or not on the curve
+	 */
+	public PublicKey fromPoint(byte[] encodedPoint) throws InvalidKeyException {
+		int length = getFieldLength();
+		if (encodedPoint.length != 1 + 2 * length || encodedPoint[0] != 0x04) {
+			throw new InvalidKeyException("Only uncompressed points are supported");
+		}
+		BigInteger x = new BigInteger(1, Arrays.copyOfRange(encodedPoint, 1, 1 + length));
+		BigInteger y = new BigInteger(1, Arrays.copyOfRange(encodedPoint, 1 + length, encodedPoint.length));
+		if (!isOnCurve(x, y)) {
+			throw new InvalidKeyException("Point is not on curve "+curveName);
+		}
+		try {
+			return KeyCodec.getKeyFactory("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), getParameters()));
+		} catch (InvalidKeySpecException e) {
+			throw new InvalidKeyException(e);
+		}
+	}
+
+	/**
+	 * @param privateValue the private scalar
+	 * @return the private key
+	 * @throws InvalidKeyException if the key can't be created
+	 */
+	public PrivateKey privateKeyFromScalar(BigInteger privateValue) throws InvalidKeyException {
+		try {
+			return KeyCodec.getKeyFactory("EC").generatePrivate(new ECPrivateKeySpec(privateValue, getParameters()));
+		} catch (InvalidKeySpecException e) {
+			throw new InvalidKeyException(e);
+		}
+	}
+
+	private int getFieldLength() {
+		return (fieldSize + 7) / 8;
+	}
+
+	private byte[] encodePoint(ECPoint point) {
+		int length = getFieldLength();
+		byte[] encoded = new byte[1 + 2 * length];
+		encoded[0] = 0x04;
+		writeUnsigned(point.getAffineX(), encoded, 1, length);
+		writeUnsigned(point.getAffineY(), encoded, 1 + length, length);
+		return encoded;
+	}
+
+	private static void writeUnsigned(BigInteger value, byte[] out, int offset, int length) {
+		byte[] bytes = value.toByteArray();
+		// Drop the sign byte if present, and left-pad with zeros
+		int start = (bytes.length > length) ? bytes.length - length : 0;
+		int count = bytes.length - start;
+		System.arraycopy(bytes, start, out, offset + length - count, count);
+	}
+
+	private boolean isOnCurve(BigInteger x, BigInteger y) {
+		EllipticCurve curve = getParameters().getCurve();
+		BigInteger p = ((ECFieldFp) curve.getField()).getP();
+		if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0) {
+			return false;
+		}
+		BigInteger lhs = y.multiply(y).mod(p);
+		BigInteger rhs = x.multiply(x).add(curve.getA()).multiply(x).add(curve.getB()).mod(p);
+		return lhs.equals(rhs);
+	}
+}
@@ -0,0 +1,30 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+
+/**
+ * ssh-ed25519 keys: the 32 byte public key
+ */
+public class Ed25519KeyType extends SSHKeyType {
+	public static final Ed25519KeyType SSH_ED25519 = new Ed25519KeyType();
+
+	private Ed25519KeyType() {
+		super(Ed25519PublicKeyCodec.KEY_TYPE);
+	}
+
+	@Override
+	public boolean supports(PublicKey key) {
+		return Ed25519PublicKeyCodec.isEd25519Key(key);
+	}
+
+	@Override
+	public byte[][] encodePublicKey(PublicKey key) throws InvalidKeyException {
+		return new byte[][] { Ed25519PublicKeyCodec.getRawKey(key) };
+	}
+
+	@Override
+	public PublicKey decodePublicKey(SSHWireReader in) throws InvalidKeyException {
+		return Ed25519PublicKeyCodec.fromRawKey(in.readBytes());
+	}
+}
@@ -0,0 +1,109 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * Some utilities to convert Ed25519 keys to and from their raw 32 byte form, as used in the ssh
+ * wire format. Keys are handled as JCA keys so that any provider supporting Ed25519 can be used.
+ * Public keys in ssh-keygen format are encoded and decoded by {@link SSHPublicKeyCodec}.
+ */
+public class Ed25519PublicKeyCodec extends KeyCodec {
+	public static final String KEY_TYPE = "ssh-ed25519";
+	public static final int KEY_LENGTH = 32;
+
+	// DER encoding of the Ed25519 algorithm identifier, OID 1.3.101.112
+	private static final byte[] ALGORITHM_ID = { 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70 };
+	// DER prefixes of the X.509 and PKCS#8 encodings of Ed25519 keys (RFC 8410); the raw key follows
+	private static final byte[] X509_PREFIX = {
+			0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00 };
+	private static final byte[] PKCS8_PREFIX = {
+			0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x04, 0x22, 0x04, 0x20 };
+
+	private Ed25519PublicKeyCodec() {
+		super();
+	}
+
+	/**
+	 * @param key a public or private key
+	 * @return true if the key is an Ed25519 key
+	 */
+	public static boolean isEd25519Key(Key key) {
+		String algorithm = key.getAlgorithm();
+		if ("Ed25519".equals(algorithm)) {
+			return true;
+		} else if (!"EdDSA".equals(algorithm)) {
+			return false;
+		}
+		// Some providers report "EdDSA" for both Ed25519 and Ed448 keys, so check the algorithm
+		// identifier following the sequence header (and the version, for PKCS#8)
+		byte[] encoded = key.getEncoded();
+		int offset = (key instanceof PrivateKey) ? 5 : 2;
+		return encoded != null && encoded.length >= offset + ALGORITHM_ID.length
+				&& Arrays.equals(Arrays.copyOfRange(encoded, offset, offset + ALGORITHM_ID.length), ALGORITHM_ID);
+	}
+
+	private static byte[] getRawKeyOrNull(PublicKey key) {
+		byte[] encoded = key.getEncoded();
+		if (encoded == null || encoded.length != X509_PREFIX.length + KEY_LENGTH
+				|| !Arrays.equals(Arrays.copyOf(encoded, X509_PREFIX.length), X509_PREFIX)) {
+			return null;
+		}
+		return Arrays.copyOfRange(encoded, X509_PREFIX.length, encoded.length);
+	}
+
+	/**
+	 * @param key an Ed25519 public key
+	 * @return the 32 byte encoding of the key used in the SSH wire format
+	 * @throws InvalidKeyException if the key is not an Ed25519 key
+	 */
+	public static byte[] getRawKey(PublicKey key) throws InvalidKeyException {
+		byte[] rawKey = getRawKeyOrNull(key);
+		if (rawKey == null) {
+			throw new InvalidKeyException("Not an Ed25519 public key");
+		}
+		return rawKey;
+	}
+
+	/**
+	 * @param rawKey 32 byte public key, as used in the SSH wire format
+	 * @return the public key
+	 * @throws InvalidKeyException if the key is not 32 bytes long
+	 */
+	public static PublicKey fromRawKey(byte[] rawKey) throws InvalidKeyException {
+		if (rawKey.length != KEY_LENGTH) {
+			throw new InvalidKeyException("Ed25519 public keys must be "+KEY_LENGTH+" bytes");
+		}
+		byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + KEY_LENGTH);
+		System.arraycopy(rawKey, 0, encoded, X509_PREFIX.length, KEY_LENGTH);
+		try {
+			return getKeyFactory("Ed25519").generatePublic(new X509EncodedKeySpec(encoded));
+		} catch (InvalidKeySpecException e) {
+			throw new InvalidKeyException(e);
+		}
+	}
+
+	/**
+	 * @param seed 32 byte private key seed, as stored in OpenSSH private key files
+	 * @return the private key
+	 * @throws InvalidKeyException if the seed is not 32 bytes long
+	 */
+	public static PrivateKey privateKeyFromSeed(byte[] seed) throws InvalidKeyException {
+		if (seed.length != KEY_LENGTH) {
+			throw new InvalidKeyException("Ed25519 private keys must be "+KEY_LENGTH+" bytes");
+		}
+		byte[] encoded = Arrays.copyOf(PKCS8_PREFIX, PKCS8_PREFIX.length + KEY_LENGTH);
+		System.arraycopy(seed, 0, encoded, PKCS8_PREFIX.length, KEY_LENGTH);
+		try {
+			return getKeyFactory("Ed25519").generatePrivate(new PKCS8EncodedKeySpec(encoded));
+		} catch (InvalidKeySpecException e) {
+			throw new InvalidKeyException(e);
+		}
+	}
+}
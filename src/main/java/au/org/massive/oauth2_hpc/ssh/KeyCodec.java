@@ -8,7 +8,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.security.KeyFactory;
 import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
 
 import org.apache.log4j.Logger;
 import org.bouncycastle.openssl.EncryptionException;
@@ -47,6 +49,24 @@ public class KeyCodec {
 		return data;
 	}
 	
+	/**
+	 * Returns a key factory for the algorithm, preferring the installed providers and
+	 * falling back to bouncycastle
+	 * @param algorithm key algorithm name
+	 * @return the key factory
+	 */
+	protected static KeyFactory getKeyFactory(String algorithm) {
+		try {
+			return KeyFactory.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			try {
+				return KeyFactory.getInstance(algorithm, CASigner.BOUNCY_CASTLE_PROVIDER);
+			} catch (NoSuchAlgorithmException e1) {
+				throw new RuntimeException(e1);
+			}
+		}
+	}
+	
 	/**
 	 * Reads a password from the console. Used when the private key needs to be decrypted but
 	 * a passphrase is either not provided or incorrect.
@@ -68,6 +88,17 @@ public class KeyCodec {
 	 * @return the key pair
 	 */
 	public static KeyPair decodePEMKeyPair(byte[] data, String passphrase) {
+		return decodePEMKeyPair(data, passphrase, true);
+	}
+	
+	/**
+	 * Decodes a key pair from a byte array
+	 * @param data byte array
+	 * @param passphrase private key passphrase - can be null if not required
+	 * @param promptForPassphrase whether to ask for the passphrase on the console if it is missing or incorrect
+	 * @return the key pair
+	 */
+	public static KeyPair decodePEMKeyPair(byte[] data, String passphrase, boolean promptForPassphrase) {
 		try {
 			ByteArrayInputStream buf = new ByteArrayInputStream(data);
 			InputStreamReader in = new InputStreamReader(buf);
@@ -95,6 +126,9 @@ public class KeyCodec {
 		    
 		} catch (EncryptionException e) {
 			log.error("Could not decrypt private key!");
+			if (!promptForPassphrase) {
+				throw new RuntimeException(e);
+			}
 			try {
 				passphrase = readPassword("Enter passphrase for private key");
 			} catch (IOException e1) {
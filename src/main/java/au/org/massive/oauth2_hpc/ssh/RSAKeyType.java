@@ -0,0 +1,48 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+
+/**
+ * ssh-rsa keys: the public exponent followed by the modulus
+ */
+public class RSAKeyType extends SSHKeyType {
+	public static final RSAKeyType SSH_RSA = new RSAKeyType();
+
+	private RSAKeyType() {
+		super("ssh-rsa");
+	}
+
+	@Override
+	public boolean supports(PublicKey key) {
+		return key instanceof RSAPublicKey;
+	}
+
+	@Override
+	public byte[][] encodePublicKey(PublicKey key) throws InvalidKeyException {
+		if (!supports(key)) {
+			throw new InvalidKeyException("Not an RSA public key");
+		}
+		RSAPublicKey rsaKey = (RSAPublicKey) key;
+		return new byte[][] {
+				rsaKey.getPublicExponent().toByteArray(),
+				rsaKey.getModulus().toByteArray()
+		};
+	}
+
+	@Override
+	public PublicKey decodePublicKey(SSHWireReader in) throws InvalidKeyException {
+		BigInteger exponent = in.readMPInt();
+		BigInteger modulus = in.readMPInt();
+		RSAPublicKeySpec spec = new RSAPublicKeySpec(modulus, exponent);
+		try {
+			return KeyCodec.getKeyFactory("RSA").generatePublic(spec);
+		} catch (InvalidKeySpecException e) {
+			throw new InvalidKeyException(e);
+		}
+	}
+}
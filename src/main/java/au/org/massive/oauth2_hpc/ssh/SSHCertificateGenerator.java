@@ -1,33 +1,39 @@
 package au.org.massive.oauth2_hpc.ssh;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.Signature;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SignatureException;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.interfaces.RSAPublicKey;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.Map;
-import java.util.Random;
-import java.util.TreeMap;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.springframework.security.crypto.codec.Base64;
+import au.org.massive.oauth2_hpc.ssh.CAKeyHolder.CAKeys;
 
 /**
- * Signs ssh-rsa public keys and produces a certificate
+ * Signs public keys of any type supported by {@link SSHPublicKeyCodec} and produces a certificate
  * 
  * @author jrigby
  *
  */
 public class SSHCertificateGenerator {
 
+	/**
+	 * Initial size of the per-thread certificate buffer; large enough for a certificate of a
+	 * 4096 bit RSA key signed by a 4096 bit RSA CA with a few principals
+	 */
+	private static final int CERTIFICATE_BUFFER_SIZE = 4096;
+	
+	private static final ThreadLocal<SSHWireWriter> writers = new ThreadLocal<SSHWireWriter>() {
+		@Override
+		protected SSHWireWriter initialValue() {
+			return new SSHWireWriter(CERTIFICATE_BUFFER_SIZE);
+		}
+	};
+	
+	private static final SecureRandom random = new SecureRandom();
+	
 	private SSHCertificateGenerator() {
 		
 	}
@@ -59,21 +65,8 @@ public class SSHCertificateGenerator {
 	}
 	
 	/**
-	 * Comparator to facilitate lexical ordering required by the certificate specification
-	 * @author jrigby
-	 *
-	 */
-	private static class SSHOptionsComparator implements Comparator<SSHOptions> {
-
-		@Override
-		public int compare(SSHOptions o1, SSHOptions o2) {
-			return o1.getValue().compareTo(o2.getValue());
-		}
-		
-	}
-	
-	/**
-	 * Allowed SSH extensions
+	 * Allowed SSH extensions. Constants are declared in the lexical order required by the
+	 * certificate specification, so they are written in enum order.
 	 * @author jrigby
 	 *
 	 */
@@ -93,7 +86,8 @@ public class SSHCertificateGenerator {
 	}
 	
 	/**
-	 * Allowed SSH critical options
+	 * Allowed SSH critical options. Constants are declared in the lexical order required by the
+	 * certificate specification, so they are written in enum order.
 	 * @author jrigby
 	 *
 	 */
@@ -110,7 +104,15 @@ public class SSHCertificateGenerator {
 	}
 	
 	/**
-	 * Signs a public key to produce a certificate
+	 * Produces the signature over the certificate data
+	 */
+	private interface CertificateSigner {
+		byte[] sign(byte[] data, int offset, int length) throws InvalidKeyException, SignatureException;
+	}
+	
+	/**
+	 * Signs a public key to produce a certificate, with the default signature algorithm for the
+	 * CA key type
 	 * 
 	 * @param options certificate signing options
 	 * @param caPubKey the public key of the CA
@@ -119,141 +121,82 @@ public class SSHCertificateGenerator {
 	 * @throws InvalidKeyException thrown if the keys are invalid
 	 * @throws SignatureException thrown if a signature could not be generated
 	 */
-	public static String generateSSHCertificate(SSHCertificateOptions options, RSAPublicKey caPubKey, RSAPrivateKey caPrivKey) throws IOException, InvalidKeyException, SignatureException {
-		final String header = "ssh-rsa-cert-v01@openssh.com ";
-		final String footer = " ssh-authz@"+System.currentTimeMillis();
-		
-		String cert = new String(Base64
-				.encode(signCert(options, caPubKey, caPrivKey)));
-		
-		StringBuilder sb = new StringBuilder();
-		sb.append(header);
-		sb.append(cert);
-		sb.append(footer);
-		return sb.toString();
+	public static String generateSSHCertificate(SSHCertificateOptions options, PublicKey caPubKey, PrivateKey caPrivKey) throws IOException, InvalidKeyException, SignatureException {
+		return generateSSHCertificate(options, caPubKey, caPrivKey, null);
 	}
 	
 	/**
-	 * Produces a certificate byte array. The result is formatted by {@link SSHCertificateGenerator#generateSSHCertificate(SSHCertificateOptions, RSAPublicKey, RSAPrivateKey)}
+	 * Signs a public key to produce a certificate, with the given signature algorithm
+	 * 
 	 * @param options certificate signing options
 	 * @param caPubKey the public key of the CA
 	 * @param caPrivKey the private key of the CA
-	 * @return certificate as a byte array
-	 * @throws InvalidKeyException thrown if the keys are invalid
+	 * @param signatureAlgorithm algorithm used to sign the certificate, e.g. rsa-sha2-256 for an RSA CA key;
+	 * null to use the default for the CA key type
+	 * @return a certificate
+	 * @throws InvalidKeyException thrown if the keys are invalid, or the algorithm can't be used with the CA key
 	 * @throws SignatureException thrown if a signature could not be generated
 	 */
-	private static byte[] signCert(SSHCertificateOptions options, RSAPublicKey caPubKey, RSAPrivateKey caPrivKey) throws IOException, InvalidKeyException, SignatureException {
-		Random rnd;
-		try {
-			rnd = SecureRandom.getInstance("SHA1PRNG", "SUN");
-		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-			throw new RuntimeException(e);
-		}
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(buf);
-		byte[] nonce = new byte[32];
-		rnd.nextBytes(nonce);
-		
-		writeValue("ssh-rsa-cert-v01@openssh.com", dos);
-		writeValue(nonce, dos);
-		writeValue(options.getPubKey().getPublicExponent().toByteArray(), dos);
-		writeValue(options.getPubKey().getModulus().toByteArray(), dos);
-		writeValue(options.getSerial(), dos);
-		writeValue(options.getType().getValue(), dos);
-		writeValue(options.getKeyId(), dos);
-		writeValue(options.getPrincipals(), dos);
-		writeValue(options.getValidAfter(), dos);
-		writeValue(options.getValidBefore(), dos);
-		writeValue(options.getCriticalOpts(), dos);
-		writeValue(options.getExtensions(), dos);
-		writeValue("", dos); // Reserved, unused
-		writeValue(caPubKey, dos);
-		dos.flush();
-		
-		byte[] dataToSign = buf.toByteArray();
-		writeSignature(dataToSign, caPrivKey, dos);
-		
-		dos.close();
-		return buf.toByteArray();
-	}
-	
-	private static void writeValue(byte[] data, DataOutputStream out) throws IOException {
-		out.writeInt(data.length);
-		if (data.length > 0) {
-			out.write(data);
+	public static String generateSSHCertificate(SSHCertificateOptions options, PublicKey caPubKey, final PrivateKey caPrivKey,
+			SSHSignatureAlgorithm signatureAlgorithm) throws IOException, InvalidKeyException, SignatureException {
+		if (signatureAlgorithm != null && !signatureAlgorithm.isCompatibleWith(caPubKey)) {
+			throw new InvalidKeyException("Signature algorithm "+signatureAlgorithm.getName()
+					+" can't be used with a "+caPubKey.getAlgorithm()+" CA key");
 		}
+		final SSHSignatureAlgorithm algorithm = (signatureAlgorithm != null) ? signatureAlgorithm : SSHSignatureAlgorithm.forKey(caPubKey);
+		return generateSSHCertificate(options, new SSHCertificateTemplate(caPubKey, algorithm, options), new CertificateSigner() {
+			@Override
+			public byte[] sign(byte[] data, int offset, int length) throws InvalidKeyException, SignatureException {
+				try {
+					Signature signature = Signature.getInstance(algorithm.getJcaAlgorithm(), CASigner.BOUNCY_CASTLE_PROVIDER);
+					signature.initSign(caPrivKey);
+					signature.update(data, offset, length);
+					return signature.sign();
+				} catch (NoSuchAlgorithmException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
 	}
 	
-	private static void writeValue(String data, DataOutputStream out) throws IOException {
-		writeValue(data.getBytes(), out);
-	}
-	
-	private static void writeSignature(byte[] dataToSign, RSAPrivateKey privKey, DataOutputStream out) throws InvalidKeyException, SignatureException, IOException {
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		DataOutputStream out1 = new DataOutputStream(buf);
-		try {
-			Signature signature = Signature.getInstance("SHA1withRSA", new BouncyCastleProvider());
-			signature.initSign(privKey);
-			signature.update(dataToSign);
-			writeValue("ssh-rsa", out1);
-			writeValue(signature.sign(), out1);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		}
-		out1.close();
-		writeValue(buf.toByteArray(), out);
-	}
-	
-	private static void writeValue(String[] data, DataOutputStream out) throws IOException {
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		DataOutputStream out1 = new DataOutputStream(buf);
-		for (String d : data) {
-			writeValue(d, out1);
-		}
-		out1.close();
-		writeValue(buf.toByteArray(), out);
+	/**
+	 * Signs a public key to produce a certificate, using the keys, signature engines and
+	 * certificate templates held by a {@link CASigner}
+	 * 
+	 * @param options certificate signing options
+	 * @param signer the CA signer
+	 * @return a certificate
+	 * @throws InvalidKeyException thrown if the keys are invalid
+	 * @throws SignatureException thrown if a signature could not be generated
+	 */
+	public static String generateSSHCertificate(SSHCertificateOptions options, final CASigner signer) throws IOException, InvalidKeyException, SignatureException {
+		final CAKeys caKeys = signer.getKeys();
+		return generateSSHCertificate(options, signer.getTemplate(caKeys, options), new CertificateSigner() {
+			@Override
+			public byte[] sign(byte[] data, int offset, int length) throws InvalidKeyException, SignatureException {
+				return signer.sign(caKeys, data, offset, length);
+			}
+		});
 	}
 	
-	private static <T extends SSHOptions> void writeValue(Map<T,String> options, DataOutputStream out) throws IOException {
-		// Ensure that options are in lexical order
-		TreeMap<T,String> sortedOpts = new TreeMap<T,String>(new SSHOptionsComparator());
-		sortedOpts.putAll(options);
-		
-		String[] data = new String[sortedOpts.size() * 2];
+	/**
+	 * Builds and signs the certificate in this thread's buffer, then base64-encodes it straight into the result
+	 */
+	private static String generateSSHCertificate(SSHCertificateOptions options, SSHCertificateTemplate template, CertificateSigner signer) throws InvalidKeyException, SignatureException {
+		SSHWireWriter out = writers.get().reset();
+		byte[] nonce = new byte[32];
+		random.nextBytes(nonce);
+		template.writeCertificateData(options, nonce, out);
+		byte[] signature = signer.sign(out.array(), 0, out.size());
+		template.writeSignature(template.getSignatureAlgorithm().encodeSignature(signature), out);
 		
-		int i = 0;
-		for (T option : sortedOpts.keySet()) {
-			data[i] = option.getValue();
-			data[i+1] = options.get(option);
-			i += 2;
-		}
-		writeValue(data, out);
-	}
-	
-	private static <T extends SSHOptions> void writeValue(Collection<T> options, DataOutputStream out) throws IOException {
-		// Ensure that options are in lexical order
-		Map<T,String> map = new TreeMap<T,String>(new SSHOptionsComparator());
-		for (T option : options) {
-			map.put(option, "");
-		}
-		writeValue(map, out);
-	}
-	
-	private static void writeValue(RSAPublicKey key, DataOutputStream out) throws IOException {
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		DataOutputStream out1 = new DataOutputStream(buf);
-		writeValue("ssh-rsa", out1);
-		writeValue(key.getPublicExponent().toByteArray(), out1);
-		writeValue(key.getModulus().toByteArray(), out1);
-		out1.close();
-		writeValue(buf.toByteArray(), out);
-	}
-	
-	private static void writeValue(int i, DataOutputStream out) throws IOException {
-		out.writeInt(i);
-	}
-	
-	private static void writeValue(long i, DataOutputStream out) throws IOException {
-		out.writeLong(i);
+		String header = template.getKeyType().getCertificateType();
+		String footer = " ssh-authz@"+System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder(header.length() + 1 + (out.size() + 2) / 3 * 4 + footer.length());
+		sb.append(header);
+		sb.append(' ');
+		out.appendBase64(sb);
+		sb.append(footer);
+		return sb.toString();
 	}
 }
@@ -1,6 +1,6 @@
 package au.org.massive.oauth2_hpc.ssh;
 
-import java.security.interfaces.RSAPublicKey;
+import java.security.PublicKey;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -23,7 +23,7 @@ import com.google.common.collect.ImmutableSet;
  *
  */
 public class SSHCertificateOptions {
-	final private RSAPublicKey pubKey;
+	final private PublicKey pubKey;
 	final private long serial;
 	final private String keyId;
 	final private SSHCertType type;
@@ -36,7 +36,7 @@ public class SSHCertificateOptions {
 	/**
 	 * Private constructor; object instantiated by the {@link SSHCertificateOptions.Builder}
 	 */
-	private SSHCertificateOptions(RSAPublicKey pubKey, long serial,
+	private SSHCertificateOptions(PublicKey pubKey, long serial,
 			String keyId, SSHCertType type, String[] principals,
 			long validBefore, long validAfter,
 			Map<SSHCriticalOptions, String> criticalOpts,
@@ -53,7 +53,7 @@ public class SSHCertificateOptions {
 		this.extensions = ImmutableSet.<SSHExtensions>builder().addAll(extensions).build();
 	}
 	
-	public RSAPublicKey getPubKey() {
+	public PublicKey getPubKey() {
 		return pubKey;
 	}
 
@@ -95,7 +95,7 @@ public class SSHCertificateOptions {
 	 *
 	 */
 	public static class Builder {
-		private RSAPublicKey pubKey;
+		private PublicKey pubKey;
 		private long serial;
 		private String keyId;
 		private SSHCertType type;
@@ -121,7 +121,7 @@ public class SSHCertificateOptions {
 			return new SSHCertificateOptions(pubKey, serial, keyId, type, principals, validBefore, validAfter, criticalOpts, extensions);
 		}
 		
-		public Builder setPubKey(RSAPublicKey pubKey) {
+		public Builder setPubKey(PublicKey pubKey) {
 			this.pubKey = pubKey;
 			return this;
 		}
@@ -0,0 +1,209 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.Set;
+
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator.SSHCriticalOptions;
+import au.org.massive.oauth2_hpc.ssh.SSHCertificateGenerator.SSHExtensions;
+
+/**
+ * The parts of a certificate that are the same for every certificate issued by a CA under a
+ * particular policy, pre-encoded in the SSH wire format: the certificate type, the critical
+ * options and extensions, the reserved field, the CA public key and the signature algorithm
+ * name. Signing a certificate from a template only encodes the nonce, the user key, the serial,
+ * the key id, the principals and the validity window.
+ * <p>
+ * Critical options are only pre-encoded when there is no force-command, since the command
+ * usually differs between requests; otherwise they are encoded for each certificate.
+ */
+public class SSHCertificateTemplate {
+	private final SSHKeyType keyType;
+	private final SSHSignatureAlgorithm algorithm;
+	private final byte[] certificateType;
+	private final byte[] criticalOptions;
+	private final byte[] extensions;
+	private final byte[] trailer;
+	private final byte[] signatureAlgorithm;
+
+	/**
+	 * Identifies the certificates that can share a template for a given CA
+	 */
+	static final class Policy {
+		private final SSHKeyType keyType;
+		private final Set<SSHExtensions> extensions;
+		private final Map<SSHCriticalOptions, String> criticalOptions;
+
+		private Policy(SSHKeyType keyType, Set<SSHExtensions> extensions, Map<SSHCriticalOptions, String> criticalOptions) {
+			this.keyType = keyType;
+			this.extensions = extensions;
+			this.criticalOptions = criticalOptions;
+		}
+
+		/**
+		 * @param options certificate signing options
+		 * @return the policy of the options
+		 * @throws InvalidKeyException if the key being signed is of an unsupported type
+		 */
+		static Policy of(SSHCertificateOptions options) throws InvalidKeyException {
+			Map<SSHCriticalOptions, String> criticalOptions = options.getCriticalOpts();
+			return new Policy(SSHPublicKeyCodec.getKeyType(options.getPubKey()), options.getExtensions(),
+					criticalOptions.containsKey(SSHCriticalOptions.FORCE_COMMAND) ? null : criticalOptions);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Policy)) {
+				return false;
+			}
+			Policy other = (Policy) o;
+			return keyType == other.keyType && extensions.equals(other.extensions)
+					&& (criticalOptions == null ? other.criticalOptions == null : criticalOptions.equals(other.criticalOptions));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * keyType.hashCode() + extensions.hashCode()) + (criticalOptions == null ? 0 : criticalOptions.hashCode());
+		}
+	}
+
+	/**
+	 * Pre-encodes the invariant parts of certificates
+	 * @param caPubKey the public key of the CA
+	 * @param algorithm the CA signature algorithm
+	 * @param options signing options of a certificate under the policy; only the key type,
+	 * critical options and extensions are used
+	 * @throws InvalidKeyException if the CA key or the key being signed is of an unsupported type
+	 */
+	public SSHCertificateTemplate(PublicKey caPubKey, SSHSignatureAlgorithm algorithm, SSHCertificateOptions options) throws InvalidKeyException {
+		this(caPubKey, algorithm, Policy.of(options));
+	}
+
+	SSHCertificateTemplate(PublicKey caPubKey, SSHSignatureAlgorithm algorithm, Policy policy) throws InvalidKeyException {
+		this.keyType = policy.keyType;
+		this.algorithm = algorithm;
+		SSHWireWriter out = new SSHWireWriter(1024);
+
+		out.writeString(keyType.getCertificateType());
+		certificateType = toByteArray(out);
+
+		if (policy.criticalOptions != null) {
+			writeCriticalOptions(policy.criticalOptions, out);
+			criticalOptions = toByteArray(out);
+		} else {
+			criticalOptions = null;
+		}
+
+		writeExtensions(policy.extensions, out);
+		extensions = toByteArray(out);
+
+		out.writeString(""); // Reserved, unused
+		int caKeyMark = out.startString();
+		SSHPublicKeyCodec.writePublicKey(SSHPublicKeyCodec.getKeyType(caPubKey), caPubKey, out);
+		out.endString(caKeyMark);
+		trailer = toByteArray(out);
+
+		out.writeString(algorithm.getName());
+		signatureAlgorithm = toByteArray(out);
+	}
+
+	private static byte[] toByteArray(SSHWireWriter out) {
+		byte[] data = out.toByteArray();
+		out.reset();
+		return data;
+	}
+
+	/**
+	 * @return the type of the keys this template certifies
+	 */
+	public SSHKeyType getKeyType() {
+		return keyType;
+	}
+
+	/**
+	 * @return the CA signature algorithm
+	 */
+	public SSHSignatureAlgorithm getSignatureAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Writes the certificate data to be signed, i.e. everything up to and including the CA key
+	 * @param options certificate signing options; must match the policy of this template
+	 * @param nonce the certificate nonce
+	 * @param out the writer
+	 * @throws InvalidKeyException if the key being signed is not of the template key type
+	 */
+	public void writeCertificateData(SSHCertificateOptions options, byte[] nonce, SSHWireWriter out) throws InvalidKeyException {
+		out.writeRaw(certificateType);
+		out.writeBytes(nonce);
+		for (byte[] field : keyType.encodePublicKey(options.getPubKey())) {
+			out.writeBytes(field);
+		}
+		out.writeLong(options.getSerial());
+		out.writeInt(options.getType().getValue());
+		out.writeString(options.getKeyId());
+		writePrincipals(options.getPrincipals(), out);
+		out.writeLong(options.getValidAfter());
+		out.writeLong(options.getValidBefore());
+		if (criticalOptions != null) {
+			out.writeRaw(criticalOptions);
+		} else {
+			writeCriticalOptions(options.getCriticalOpts(), out);
+		}
+		out.writeRaw(extensions);
+		out.writeRaw(trailer);
+	}
+
+	/**
+	 * Writes the signature field that completes a certificate
+	 * @param signature the signature, as returned by {@link SSHSignatureAlgorithm#encodeSignature(byte[])}
+	 * @param out the writer
+	 */
+	public void writeSignature(byte[] signature, SSHWireWriter out) {
+		int mark = out.startString();
+		out.writeRaw(signatureAlgorithm);
+		out.writeBytes(signature);
+		out.endString(mark);
+	}
+
+	private static void writePrincipals(String[] principals, SSHWireWriter out) {
+		int mark = out.startString();
+		for (String principal : principals) {
+			out.writeString(principal);
+		}
+		out.endString(mark);
+	}
+
+	/**
+	 * Critical option data is itself a string holding the option value
+	 */
+	private static void writeCriticalOptions(Map<SSHCriticalOptions, String> options, SSHWireWriter out) {
+		int mark = out.startString();
+		for (SSHCriticalOptions option : SSHCriticalOptions.values()) {
+			String value = options.get(option);
+			if (value != null) {
+				out.writeString(option.getValue());
+				int valueMark = out.startString();
+				out.writeString(value);
+				out.endString(valueMark);
+			}
+		}
+		out.endString(mark);
+	}
+
+	/**
+	 * Extensions used by this server have no data, which is written as an empty string
+	 */
+	private static void writeExtensions(Set<SSHExtensions> extensions, SSHWireWriter out) {
+		int mark = out.startString();
+		for (SSHExtensions extension : SSHExtensions.values()) {
+			if (extensions.contains(extension)) {
+				out.writeString(extension.getValue());
+				out.writeString("");
+			}
+		}
+		out.endString(mark);
+	}
+}
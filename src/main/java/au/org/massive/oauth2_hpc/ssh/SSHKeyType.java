@@ -0,0 +1,54 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+
+/**
+ * A public key algorithm that can be encoded in the SSH wire format. Implementations are
+ * registered with {@link SSHPublicKeyCodec}, which dispatches on the key type name when
+ * decoding keys and on {@link #supports(PublicKey)} when encoding them.
+ */
+public abstract class SSHKeyType {
+	private final String name;
+
+	protected SSHKeyType(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the key type name, e.g. ssh-rsa
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the type name of certificates for keys of this type, e.g. ssh-rsa-cert-v01@openssh.com
+	 */
+	public String getCertificateType() {
+		return name+"-cert-v01@openssh.com";
+	}
+
+	/**
+	 * @param key a public key
+	 * @return true if keys of this type can encode the key
+	 */
+	public abstract boolean supports(PublicKey key);
+
+	/**
+	 * Encodes the fields that follow the key type name in an encoded public key. Certificates
+	 * contain the same fields after the nonce.
+	 * @param key the public key
+	 * @return the field values, each written as an SSH string
+	 * @throws InvalidKeyException if the key is not of this type
+	 */
+	public abstract byte[][] encodePublicKey(PublicKey key) throws InvalidKeyException;
+
+	/**
+	 * Decodes the fields that follow the key type name in an encoded public key
+	 * @param in reader positioned after the key type name
+	 * @return the public key
+	 * @throws InvalidKeyException if the key is malformed
+	 */
+	public abstract PublicKey decodePublicKey(SSHWireReader in) throws InvalidKeyException;
+}
@@ -0,0 +1,149 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.springframework.security.crypto.codec.Base64;
+
+/**
+ * Encodes and decodes public keys in ssh-keygen format, dispatching to the registered
+ * {@link SSHKeyType} for the key. RSA, Ed25519 and ECDSA (nistp256, nistp384, nistp521)
+ * keys are registered by default.
+ */
+public class SSHPublicKeyCodec extends KeyCodec {
+	private static final List<SSHKeyType> keyTypes = new CopyOnWriteArrayList<SSHKeyType>();
+
+	static {
+		register(RSAKeyType.SSH_RSA);
+		register(Ed25519KeyType.SSH_ED25519);
+		register(ECDSAKeyType.NISTP256);
+		register(ECDSAKeyType.NISTP384);
+		register(ECDSAKeyType.NISTP521);
+	}
+
+	private SSHPublicKeyCodec() {
+		super();
+	}
+
+	/**
+	 * Adds support for a key type
+	 * @param keyType the key type
+	 */
+	public static void register(SSHKeyType keyType) {
+		keyTypes.add(keyType);
+	}
+
+	/**
+	 * @param name the key type name, e.g. ssh-rsa
+	 * @return the key type
+	 * @throws InvalidKeyException if the key type is not supported
+	 */
+	public static SSHKeyType getKeyType(String name) throws InvalidKeyException {
+		for (SSHKeyType keyType : keyTypes) {
+			if (keyType.getName().equals(name)) {
+				return keyType;
+			}
+		}
+		throw new InvalidKeyException("Unsupported key type: "+name);
+	}
+
+	/**
+	 * @param key a public key
+	 * @return the key type
+	 * @throws InvalidKeyException if the key type is not supported
+	 */
+	public static SSHKeyType getKeyType(PublicKey key) throws InvalidKeyException {
+		for (SSHKeyType keyType : keyTypes) {
+			if (keyType.supports(key)) {
+				return keyType;
+			}
+		}
+		throw new InvalidKeyException("Unsupported key type: "+key.getAlgorithm());
+	}
+
+	/**
+	 * @param key a public key
+	 * @return the certificate type for certificates of this key, e.g. ssh-rsa-cert-v01@openssh.com
+	 * @throws InvalidKeyException if the key type is not supported
+	 */
+	public static String getCertificateType(PublicKey key) throws InvalidKeyException {
+		return getKeyType(key).getCertificateType();
+	}
+
+	/**
+	 * Encodes a public key in the SSH wire format, i.e. the base64-decoded form of an ssh-keygen public key
+	 * @param key the public key
+	 * @return the encoded key
+	 * @throws InvalidKeyException if the key type is not supported
+	 */
+	public static byte[] encodePublicKeyBlob(PublicKey key) throws InvalidKeyException {
+		SSHKeyType keyType = getKeyType(key);
+		SSHWireWriter out = new SSHWireWriter(1024);
+		writePublicKey(keyType, key, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes a public key in the SSH wire format, without an enclosing length prefix
+	 * @param keyType the type of the key
+	 * @param key the public key
+	 * @param out the writer
+	 * @throws InvalidKeyException if the key is not of the given type
+	 */
+	static void writePublicKey(SSHKeyType keyType, PublicKey key, SSHWireWriter out) throws InvalidKeyException {
+		out.writeString(keyType.getName());
+		for (byte[] field : keyType.encodePublicKey(key)) {
+			out.writeBytes(field);
+		}
+	}
+
+	/**
+	 * Decodes a public key in the SSH wire format
+	 * @param blob the encoded key
+	 * @return the public key
+	 * @throws InvalidKeyException if the key is malformed or its type is not supported
+	 */
+	public static PublicKey decodePublicKeyBlob(byte[] blob) throws InvalidKeyException {
+		SSHWireReader in = new SSHWireReader(blob);
+		PublicKey key = getKeyType(in.readString()).decodePublicKey(in);
+		if (in.hasMore()) {
+			throw new InvalidKeyException();
+		}
+		return key;
+	}
+
+	public static byte[] encodeKeyToSSHBase64Format(PublicKey key) throws InvalidKeyException {
+		return Base64.encode(encodePublicKeyBlob(key));
+	}
+
+	public static PublicKey decodeKeyFromSSHBase64Format(byte[] base64Key) throws InvalidKeyException {
+		return decodePublicKeyBlob(Base64.decode(base64Key));
+	}
+
+	public static PublicKey decodeKeyFromSSHBase64Format(String key) throws InvalidKeyException {
+		if (Base64.isBase64(key.getBytes())) {
+			return decodeKeyFromSSHBase64Format(key.getBytes());
+		}
+
+		String[] keyComponents = key.trim().split("\\s+");
+		if (keyComponents.length != 3 && keyComponents.length != 2) {
+			throw new InvalidKeyException();
+		} else if (Base64.isBase64(keyComponents[1].getBytes())) {
+			PublicKey publicKey = decodeKeyFromSSHBase64Format(keyComponents[1].getBytes());
+			if (!keyComponents[0].equals(getKeyType(publicKey).getName())) {
+				throw new InvalidKeyException();
+			}
+			return publicKey;
+		} else {
+			throw new InvalidKeyException();
+		}
+	}
+
+	public static PublicKey decodeKeyFromSSHBase64Format(File file) throws InvalidKeyException, IOException {
+		return decodeKeyFromSSHBase64Format(new String(readFile(file)));
+	}
+}
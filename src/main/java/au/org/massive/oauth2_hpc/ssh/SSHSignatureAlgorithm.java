@@ -0,0 +1,154 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.Key;
+import java.security.SignatureException;
+import java.security.interfaces.RSAKey;
+import java.util.Arrays;
+
+/**
+ * Signature algorithms used by the CA to sign certificates
+ */
+public enum SSHSignatureAlgorithm {
+	SSH_RSA("ssh-rsa", "SHA1withRSA"),
+	RSA_SHA2_256("rsa-sha2-256", "SHA256withRSA"),
+	RSA_SHA2_512("rsa-sha2-512", "SHA512withRSA"),
+	SSH_ED25519("ssh-ed25519", "Ed25519"),
+	ECDSA_SHA2_NISTP256("ecdsa-sha2-nistp256", "SHA256withECDSA"),
+	ECDSA_SHA2_NISTP384("ecdsa-sha2-nistp384", "SHA384withECDSA"),
+	ECDSA_SHA2_NISTP521("ecdsa-sha2-nistp521", "SHA512withECDSA");
+
+	private final String name;
+	private final String jcaAlgorithm;
+
+	SSHSignatureAlgorithm(String name, String jcaAlgorithm) {
+		this.name = name;
+		this.jcaAlgorithm = jcaAlgorithm;
+	}
+
+	/**
+	 * @return the algorithm name written into the certificate signature
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the name of the algorithm for {@link java.security.Signature#getInstance(String)}
+	 */
+	public String getJcaAlgorithm() {
+		return jcaAlgorithm;
+	}
+
+	/**
+	 * Converts a signature produced by the JCA into the form used in SSH signature blobs.
+	 * RSA and Ed25519 signatures are used as is; ECDSA signatures are converted from a DER
+	 * sequence to two mpints (RFC 5656 section 3.1.2).
+	 * @param signature the JCA signature
+	 * @return the SSH signature
+	 * @throws SignatureException if an ECDSA signature is malformed
+	 */
+	public byte[] encodeSignature(byte[] signature) throws SignatureException {
+		if (!name.startsWith("ecdsa-")) {
+			return signature;
+		}
+		try {
+			int[] pos = { 0 };
+			if (signature[pos[0]++] != 0x30) {
+				throw new SignatureException("Malformed ECDSA signature");
+			}
+			readDERLength(signature, pos);
+			byte[] r = readDERInteger(signature, pos);
+			byte[] s = readDERInteger(signature, pos);
+
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeInt(r.length);
+			out.write(r);
+			out.writeInt(s.length);
+			out.write(s);
+			out.close();
+			return buf.toByteArray();
+		} catch (ArrayIndexOutOfBoundsException | IOException e) {
+			throw new SignatureException("Malformed ECDSA signature", e);
+		}
+	}
+
+	private static int readDERLength(byte[] der, int[] pos) {
+		int length = der[pos[0]++] & 0xff;
+		if (length < 0x80) {
+			return length;
+		}
+		int lengthBytes = length & 0x7f;
+		length = 0;
+		for (int i = 0; i < lengthBytes; i++) {
+			length = (length << 8) | (der[pos[0]++] & 0xff);
+		}
+		return length;
+	}
+
+	private static byte[] readDERInteger(byte[] der, int[] pos) throws SignatureException {
+		if (der[pos[0]++] != 0x02) {
+			throw new SignatureException("Malformed ECDSA signature");
+		}
+		int length = readDERLength(der, pos);
+		if (pos[0] + length > der.length) {
+			throw new SignatureException("Malformed ECDSA signature");
+		}
+		// DER integers are minimal two's complement, which is also the mpint encoding
+		byte[] value = Arrays.copyOfRange(der, pos[0], pos[0] + length);
+		pos[0] += length;
+		return value;
+	}
+
+	/**
+	 * @param name algorithm name, e.g. rsa-sha2-512
+	 * @return the signature algorithm
+	 * @throws IllegalArgumentException if the name is not a known algorithm
+	 */
+	public static SSHSignatureAlgorithm fromName(String name) {
+		for (SSHSignatureAlgorithm algorithm : values()) {
+			if (algorithm.name.equals(name)) {
+				return algorithm;
+			}
+		}
+		throw new IllegalArgumentException("Unknown signature algorithm: "+name);
+	}
+
+	/**
+	 * @param key CA public or private key
+	 * @return true if the key can produce signatures with this algorithm
+	 */
+	public boolean isCompatibleWith(Key key) {
+		if (key instanceof RSAKey) {
+			return this == SSH_RSA || this == RSA_SHA2_256 || this == RSA_SHA2_512;
+		}
+		return this == forKey(key);
+	}
+
+	/**
+	 * Returns the default signature algorithm for a CA key. RSA keys default to rsa-sha2-512, since
+	 * current OpenSSH servers no longer accept SHA-1 (ssh-rsa) signatures.
+	 * @param key CA public or private key
+	 * @return the signature algorithm
+	 * @throws IllegalArgumentException if the key type can't be used by the CA
+	 */
+	public static SSHSignatureAlgorithm forKey(Key key) {
+		if (key instanceof RSAKey) {
+			return RSA_SHA2_512;
+		} else if (Ed25519PublicKeyCodec.isEd25519Key(key)) {
+			return SSH_ED25519;
+		}
+		ECDSAKeyType curve = ECDSAKeyType.forKey(key);
+		if (curve != null) {
+			for (SSHSignatureAlgorithm algorithm : values()) {
+				if (algorithm.name.equals(curve.getName())) {
+					return algorithm;
+				}
+			}
+		}
+		throw new IllegalArgumentException("Unsupported CA key type: "+key.getAlgorithm());
+	}
+}
@@ -0,0 +1,50 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+
+/**
+ * Reads values encoded in the SSH wire format (RFC 4251 section 5). Malformed or truncated
+ * data is reported as an {@link InvalidKeyException}, since the data is always key material.
+ */
+public class SSHWireReader {
+	private final ByteBuffer buf;
+
+	public SSHWireReader(byte[] data) {
+		buf = ByteBuffer.wrap(data);
+	}
+
+	public int readInt() throws InvalidKeyException {
+		try {
+			return buf.getInt();
+		} catch (BufferUnderflowException e) {
+			throw new InvalidKeyException("Truncated key data");
+		}
+	}
+
+	public byte[] readBytes() throws InvalidKeyException {
+		int length = readInt();
+		if (length < 0 || length > buf.remaining()) {
+			throw new InvalidKeyException("Truncated key data");
+		}
+		byte[] data = new byte[length];
+		buf.get(data);
+		return data;
+	}
+
+	public String readString() throws InvalidKeyException {
+		return new String(readBytes(), StandardCharsets.UTF_8);
+	}
+
+	public BigInteger readMPInt() throws InvalidKeyException {
+		byte[] data = readBytes();
+		return data.length == 0 ? BigInteger.ZERO : new BigInteger(data);
+	}
+
+	public boolean hasMore() {
+		return buf.hasRemaining();
+	}
+}
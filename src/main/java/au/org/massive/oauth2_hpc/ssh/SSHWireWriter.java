@@ -0,0 +1,163 @@
+package au.org.massive.oauth2_hpc.ssh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes values in the SSH wire format (RFC 4251 section 5) into a single growable buffer.
+ * Nested strings are written in place: {@link #startString()} reserves the length prefix and
+ * {@link #endString(int)} backfills it, so no intermediate buffers are needed. A writer can be
+ * {@link #reset()} and reused; it is not thread safe.
+ */
+public class SSHWireWriter {
+	private static final char[] BASE64_ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private ByteBuffer buf;
+
+	/**
+	 * @param initialCapacity initial buffer size in bytes; the buffer grows as required
+	 */
+	public SSHWireWriter(int initialCapacity) {
+		buf = ByteBuffer.allocate(initialCapacity);
+	}
+
+	/**
+	 * Discards everything written so far, keeping the buffer
+	 * @return this writer
+	 */
+	public SSHWireWriter reset() {
+		buf.clear();
+		return this;
+	}
+
+	private void ensureCapacity(int length) {
+		if (buf.remaining() < length) {
+			int capacity = Math.max(buf.capacity() * 2, 64);
+			while (capacity - buf.position() < length) {
+				capacity *= 2;
+			}
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			buf.flip();
+			grown.put(buf);
+			buf = grown;
+		}
+	}
+
+	public void writeInt(int value) {
+		ensureCapacity(4);
+		buf.putInt(value);
+	}
+
+	public void writeLong(long value) {
+		ensureCapacity(8);
+		buf.putLong(value);
+	}
+
+	/**
+	 * Writes a length-prefixed string of bytes
+	 * @param data the bytes
+	 */
+	public void writeBytes(byte[] data) {
+		ensureCapacity(4 + data.length);
+		buf.putInt(data.length);
+		buf.put(data);
+	}
+
+	/**
+	 * Writes bytes that are already encoded, without a length prefix
+	 * @param data the encoded bytes
+	 */
+	public void writeRaw(byte[] data) {
+		ensureCapacity(data.length);
+		buf.put(data);
+	}
+
+	/**
+	 * Writes a length-prefixed UTF-8 string. ASCII strings are encoded without a temporary array.
+	 * @param value the string
+	 */
+	public void writeString(String value) {
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			if (value.charAt(i) >= 0x80) {
+				writeBytes(value.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+		}
+		ensureCapacity(4 + length);
+		buf.putInt(length);
+		for (int i = 0; i < length; i++) {
+			buf.put((byte) value.charAt(i));
+		}
+	}
+
+	/**
+	 * Starts a string whose contents are written by subsequent calls. The length prefix is
+	 * filled in by {@link #endString(int)}.
+	 * @return the position of the length prefix, to be passed to {@link #endString(int)}
+	 */
+	public int startString() {
+		ensureCapacity(4);
+		int mark = buf.position();
+		buf.putInt(0);
+		return mark;
+	}
+
+	/**
+	 * Completes a string started with {@link #startString()}
+	 * @param mark the value returned by {@link #startString()}
+	 */
+	public void endString(int mark) {
+		buf.putInt(mark, buf.position() - mark - 4);
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int size() {
+		return buf.position();
+	}
+
+	/**
+	 * @return the backing array; only the first {@link #size()} bytes are valid, and the
+	 * array may be replaced by later writes
+	 */
+	public byte[] array() {
+		return buf.array();
+	}
+
+	/**
+	 * @return a copy of the bytes written
+	 */
+	public byte[] toByteArray() {
+		byte[] data = new byte[buf.position()];
+		System.arraycopy(buf.array(), 0, data, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * Appends the bytes written so far, base64-encoded, to a string builder
+	 * @param out the string builder
+	 */
+	public void appendBase64(StringBuilder out) {
+		byte[] data = buf.array();
+		int length = buf.position();
+		out.ensureCapacity(out.length() + (length + 2) / 3 * 4);
+		int i = 0;
+		for (; i + 2 < length; i += 3) {
+			int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+			out.append(BASE64_ALPHABET[bits >>> 18]);
+			out.append(BASE64_ALPHABET[(bits >>> 12) & 0x3f]);
+			out.append(BASE64_ALPHABET[(bits >>> 6) & 0x3f]);
+			out.append(BASE64_ALPHABET[bits & 0x3f]);
+		}
+		if (i < length) {
+			int bits = (data[i] & 0xff) << 16 | (i + 1 < length ? (data[i + 1] & 0xff) << 8 : 0);
+			out.append(BASE64_ALPHABET[bits >>> 18]);
+			out.append(BASE64_ALPHABET[(bits >>> 12) & 0x3f]);
+			out.append(i + 1 < length ? BASE64_ALPHABET[(bits >>> 6) & 0x3f] : '=');
+			out.append('=');
+		}
+	}
+}
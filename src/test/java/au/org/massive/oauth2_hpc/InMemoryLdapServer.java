@@ -0,0 +1,118 @@
+package au.org.massive.oauth2_hpc;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * An in-memory LDAP replica for tests, holding users under ou=people,dc=example,dc=com. Searches
+ * can be slowed down or made to fail, and user searches are counted, so that tests can tell which
+ * replica answered. The server keeps its port when it is stopped and started again.
+ */
+public class InMemoryLdapServer {
+	private static final String BASE_DN = "dc=example,dc=com";
+
+	private final InMemoryDirectoryServer server;
+	private final int port;
+	private final AtomicInteger userSearches = new AtomicInteger();
+	private volatile long delayMillis;
+	private volatile boolean failing;
+
+	/**
+	 * Creates and starts a server
+	 * @param uids users to add, each with the email address uid@example.com
+	 * @throws LDAPException if the server could not be started
+	 */
+	public InMemoryLdapServer(String... uids) throws LDAPException {
+		port = findFreePort();
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", port));
+		config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+			@Override
+			public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+				// Health checks read the root DSE; only count searches for users
+				if (request.getRequest().getFilter().toString().contains("mail=")) {
+					userSearches.incrementAndGet();
+				}
+				if (delayMillis > 0) {
+					try {
+						Thread.sleep(delayMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				if (failing) {
+					throw new LDAPException(ResultCode.UNAVAILABLE, "Replica is failing");
+				}
+			}
+		});
+		server = new InMemoryDirectoryServer(config);
+		server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+		server.add("dn: ou=people," + BASE_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: people");
+		for (String uid : uids) {
+			server.add("dn: uid=" + uid + ",ou=people," + BASE_DN,
+					"objectClass: top", "objectClass: person", "objectClass: organizationalPerson", "objectClass: inetOrgPerson",
+					"uid: " + uid, "cn: " + uid, "sn: " + uid, "mail: " + uid + "@example.com");
+		}
+		start();
+	}
+
+	public void start() throws LDAPException {
+		server.startListening();
+	}
+
+	/**
+	 * Stops listening and closes all client connections
+	 */
+	public void stop() {
+		server.shutDown(true);
+	}
+
+	public String getUrl() {
+		return "ldap://localhost:" + port + "/";
+	}
+
+	/**
+	 * @param delayMillis how long each search waits before it is answered
+	 */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	/**
+	 * @param failing if true, searches fail as if the server were unavailable
+	 */
+	public void setFailing(boolean failing) {
+		this.failing = failing;
+	}
+
+	/**
+	 * @return user searches received, including those that were delayed or failed
+	 */
+	public int getUserSearches() {
+		return userSearches.get();
+	}
+
+	/**
+	 * @return a connection pool for the server
+	 */
+	public LdapContextPool createPool() {
+		return new LdapContextPool(getUrl(), null, null, 4, 300, 5000, 1000, 10000);
+	}
+
+	private static int findFreePort() {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		} catch (IOException e) {
+			throw new IllegalStateException("No free port for the LDAP server", e);
+		}
+	}
+}
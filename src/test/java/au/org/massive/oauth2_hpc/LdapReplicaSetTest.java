@@ -0,0 +1,74 @@
+package au.org.massive.oauth2_hpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LdapReplicaSetTest {
+	private InMemoryLdapServer fast;
+	private InMemoryLdapServer slow;
+	private LdapReplicaSet replicaSet;
+
+	@Before
+	public void setUp() throws Exception {
+		fast = new InMemoryLdapServer();
+		slow = new InMemoryLdapServer();
+		slow.setDelayMillis(50);
+		// Not probed in the background; the tests probe when they need to
+		replicaSet = new LdapReplicaSet(Arrays.asList(slow.createPool(), fast.createPool()), 0);
+	}
+
+	@After
+	public void tearDown() {
+		replicaSet.close();
+		fast.stop();
+		slow.stop();
+	}
+
+	@Test
+	public void prefersFastestHealthyReplica() {
+		replicaSet.probe();
+		assertEquals(fast.getUrl(), replicaSet.getReplicasByPreference().get(0).getUrl());
+		assertTrue(replicaSet.getReplicasByPreference().get(0).getLatencyNanos()
+				< replicaSet.getReplicasByPreference().get(1).getLatencyNanos());
+	}
+
+	@Test
+	public void probeMarksStoppedReplicaUnhealthyAndRecoveredReplicaHealthy() throws Exception {
+		replicaSet.probe();
+		fast.stop();
+		replicaSet.probe();
+		LdapReplicaSet.Replica first = replicaSet.getReplicasByPreference().get(0);
+		LdapReplicaSet.Replica last = replicaSet.getReplicasByPreference().get(1);
+		assertEquals(slow.getUrl(), first.getUrl());
+		assertEquals(fast.getUrl(), last.getUrl());
+		assertFalse(last.isHealthy());
+
+		fast.start();
+		replicaSet.probe();
+		first = replicaSet.getReplicasByPreference().get(0);
+		assertEquals(fast.getUrl(), first.getUrl());
+		assertTrue(first.isHealthy());
+	}
+
+	@Test
+	public void unhealthyReplicaIsTriedLast() {
+		replicaSet.probe();
+		LdapReplicaSet.Replica fastReplica = replicaSet.getReplicasByPreference().get(0);
+		fastReplica.recordFailure();
+		assertEquals(slow.getUrl(), replicaSet.getReplicasByPreference().get(0).getUrl());
+		fastReplica.recordSuccess(1000);
+		assertEquals(fast.getUrl(), replicaSet.getReplicasByPreference().get(0).getUrl());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void requiresAReplica() {
+		new LdapReplicaSet(Arrays.<LdapContextPool>asList(), 0);
+	}
+}
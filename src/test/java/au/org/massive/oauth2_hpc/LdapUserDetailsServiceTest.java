@@ -0,0 +1,219 @@
+package au.org.massive.oauth2_hpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import au.org.massive.oauth2_hpc.metrics.Histogram;
+
+/**
+ * Looks users up on two in-memory LDAP replicas, covering replica selection and failover, the
+ * coalescing of concurrent lookups of the same user, the circuit breaker and hedged searches
+ */
+public class LdapUserDetailsServiceTest {
+	private static final String[] USERS = { "alice", "bob", "carol", "dave", "erin", "frank" };
+
+	private InMemoryLdapServer fast;
+	private InMemoryLdapServer slow;
+	private LdapReplicaSet replicaSet;
+
+	@Before
+	public void setUp() throws Exception {
+		UserDetailsCache.getInstance().clear();
+		fast = new InMemoryLdapServer(USERS);
+		slow = new InMemoryLdapServer(USERS);
+		slow.setDelayMillis(50);
+		replicaSet = new LdapReplicaSet(Arrays.asList(slow.createPool(), fast.createPool()), 0);
+		replicaSet.probe();
+		slow.setDelayMillis(0);
+	}
+
+	@After
+	public void tearDown() {
+		replicaSet.close();
+		fast.stop();
+		slow.stop();
+	}
+
+	private LdapUserDetailsService createService(CircuitBreaker breaker, double hedgePercentile) {
+		// Each service times its own searches, so earlier tests don't affect the hedge delay
+		return new LdapUserDetailsService(replicaSet, breaker, new Histogram(), hedgePercentile, 5);
+	}
+
+	private LdapUserDetailsService createService() {
+		return createService(new CircuitBreaker("ldap-test", 5, 30), 0);
+	}
+
+	@Test
+	public void searchesFastestReplica() {
+		UserDetails user = createService().loadUserByUsername("alice@example.com");
+		assertEquals("alice", user.getUsername());
+		assertEquals(1, fast.getUserSearches());
+		assertEquals(0, slow.getUserSearches());
+	}
+
+	@Test
+	public void cachesUsers() {
+		LdapUserDetailsService service = createService();
+		service.loadUserByUsername("alice@example.com");
+		service.loadUserByUsername("alice@example.com");
+		assertEquals(1, fast.getUserSearches());
+	}
+
+	@Test(expected = UsernameNotFoundException.class)
+	public void unknownUserIsNotFound() {
+		createService().loadUserByUsername("nobody@example.com");
+	}
+
+	@Test
+	public void failsOverToAnotherReplicaWhenOneStops() throws Exception {
+		LdapUserDetailsService service = createService();
+		service.loadUserByUsername("alice@example.com");
+		fast.stop();
+
+		assertEquals("bob", service.loadUserByUsername("bob@example.com").getUsername());
+		assertEquals(1, slow.getUserSearches());
+		assertFalse(replicaSet.getReplicasByPreference().get(1).isHealthy());
+
+		// Until a probe finds it has recovered, the stopped replica is tried last
+		fast.start();
+		service.loadUserByUsername("carol@example.com");
+		assertEquals(2, slow.getUserSearches());
+
+		replicaSet.probe();
+		service.loadUserByUsername("dave@example.com");
+		assertEquals(2, fast.getUserSearches());
+		assertEquals(2, slow.getUserSearches());
+	}
+
+	@Test
+	public void coalescesConcurrentLookupsOfTheSameUser() throws Exception {
+		fast.setDelayMillis(300);
+		slow.setDelayMillis(300);
+		final LdapUserDetailsService service = createService();
+		final CountDownLatch startLookups = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<UserDetails>> lookups = new ArrayList<Future<UserDetails>>();
+			for (int i = 0; i < 8; i++) {
+				lookups.add(executor.submit(new Callable<UserDetails>() {
+					@Override
+					public UserDetails call() throws InterruptedException {
+						startLookups.await();
+						return service.loadUserByUsername("erin@example.com");
+					}
+				}));
+			}
+			startLookups.countDown();
+			for (Future<UserDetails> lookup : lookups) {
+				assertEquals("erin", lookup.get(10, TimeUnit.SECONDS).getUsername());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, fast.getUserSearches() + slow.getUserSearches());
+	}
+
+	@Test
+	public void breakerStopsLookupsWhileLdapFailsAndClosesOnceItRecovers() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("ldap-test", 2, 1);
+		LdapUserDetailsService service = createService(breaker, 0);
+		fast.setFailing(true);
+		slow.setFailing(true);
+
+		for (String user : new String[] { "alice@example.com", "bob@example.com" }) {
+			try {
+				service.loadUserByUsername(user);
+				fail("Lookup succeeded while LDAP was failing");
+			} catch (UsernameNotFoundException e) {
+				assertNotNull("A failed lookup has the search failure as its cause", e.getCause());
+			}
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		int searches = fast.getUserSearches() + slow.getUserSearches();
+		try {
+			service.loadUserByUsername("carol@example.com");
+			fail("Lookup succeeded while the breaker was open");
+		} catch (UsernameNotFoundException e) {
+			assertNotNull(e.getCause());
+		}
+		assertEquals("An open breaker doesn't query LDAP", searches, fast.getUserSearches() + slow.getUserSearches());
+
+		fast.setFailing(false);
+		slow.setFailing(false);
+		Thread.sleep(1100);
+		assertEquals("carol", service.loadUserByUsername("carol@example.com").getUsername());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void breakerOpensAgainIfTheTrialLookupFails() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("ldap-test", 1, 1);
+		LdapUserDetailsService service = createService(breaker, 0);
+		fast.setFailing(true);
+		slow.setFailing(true);
+		try {
+			service.loadUserByUsername("alice@example.com");
+			fail("Lookup succeeded while LDAP was failing");
+		} catch (UsernameNotFoundException e) {
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		}
+
+		Thread.sleep(1100);
+		int searches = fast.getUserSearches() + slow.getUserSearches();
+		try {
+			service.loadUserByUsername("alice@example.com");
+			fail("Lookup succeeded while LDAP was failing");
+		} catch (UsernameNotFoundException e) {
+			assertTrue("The trial lookup queries LDAP", fast.getUserSearches() + slow.getUserSearches() > searches);
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		}
+	}
+
+	@Test
+	public void hedgesSearchesOnASlowReplica() throws Exception {
+		LdapUserDetailsService service = createService(new CircuitBreaker("ldap-test", 5, 30), 90);
+		// Searches are only hedged once enough have been timed to know what is slow
+		for (int i = 0; i < LdapUserDetailsService.HEDGE_MIN_SAMPLES; i++) {
+			try {
+				service.loadUserByUsername("warm-up-" + i + "@example.com");
+			} catch (UsernameNotFoundException e) {
+				// Not in the directory
+			}
+		}
+
+		LdapReplicaSet.Replica primary = replicaSet.getReplicasByPreference().get(0);
+		InMemoryLdapServer primaryServer = primary.getUrl().equals(fast.getUrl()) ? fast : slow;
+		InMemoryLdapServer secondaryServer = (primaryServer == fast) ? slow : fast;
+		primaryServer.setDelayMillis(3000);
+		int primarySearches = primaryServer.getUserSearches();
+		int secondarySearches = secondaryServer.getUserSearches();
+
+		long start = System.nanoTime();
+		assertEquals("frank", service.loadUserByUsername("frank@example.com").getUsername());
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertTrue("The hedged search answered before the slow replica, after " + elapsedMillis + "ms", elapsedMillis < 2000);
+		assertEquals(primarySearches + 1, primaryServer.getUserSearches());
+		assertEquals(secondarySearches + 1, secondaryServer.getUserSearches());
+	}
+}